@@ -2,9 +2,13 @@ package com.capitalone.dashboard.collector;
 
 import com.capitalone.dashboard.model.*;
 import com.capitalone.dashboard.util.Supplier;
-import org.apache.commons.codec.binary.Base64;
 import org.apache.commons.collections.CollectionUtils;
 import org.apache.commons.lang3.StringUtils;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.concurrent.FutureCallback;
+import org.apache.http.nio.client.HttpAsyncClient;
+import org.apache.http.util.EntityUtils;
 import org.json.simple.JSONArray;
 import org.json.simple.JSONObject;
 import org.json.simple.parser.JSONParser;
@@ -15,35 +19,55 @@ import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.http.HttpEntity;
 import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpMethod;
+import org.springframework.http.HttpStatus;
 import org.springframework.http.ResponseEntity;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
 import org.springframework.stereotype.Component;
 import org.springframework.web.client.HttpClientErrorException;
+import org.springframework.web.client.HttpStatusCodeException;
+import org.springframework.web.client.ResourceAccessException;
 import org.springframework.web.client.RestClientException;
+import org.springframework.web.client.ResponseExtractor;
 import org.springframework.web.client.RestOperations;
-import sun.rmi.runtime.Log;
 
+import java.io.IOException;
+import java.io.InputStream;
 import java.io.UnsupportedEncodingException;
 import java.net.*;
-import java.nio.charset.StandardCharsets;
 import java.text.SimpleDateFormat;
+import java.time.Instant;
 import java.time.LocalDateTime;
 import java.time.ZoneOffset;
 import java.time.format.DateTimeFormatter;
+import java.nio.charset.StandardCharsets;
 import java.util.*;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
 
 
 /**
  * TeamcityClient implementation that uses RestTemplate and JSONSimple to
- * fetch information from Teamcity instances.
+ * fetch information from Teamcity instances. Build details can also be fetched on a
+ * non-blocking client, set up like the RestTemplate.
  */
 @Component
 public class DefaultTeamcityClient implements TeamcityClient {
     private static final Logger LOG = LoggerFactory.getLogger(DefaultTeamcityClient.class);
 
     private final RestOperations rest;
+    private final Supplier<HttpAsyncClient> asyncClientSupplier;
     private final TeamcitySettings settings;
+    private final TeamcityJsonStreamParser streamParser = new TeamcityJsonStreamParser();
+    private final TeamcityResponseCache responseCache;
+    private final TeamcityPageSizer pageSizer;
+    private final TeamcityRequestGovernor governor;
+    private final TeamcityCredentials credentials;
 
     private static final String PROJECT_API_URL_SUFFIX = "app/rest/projects";
 
@@ -51,185 +75,413 @@ public class DefaultTeamcityClient implements TeamcityClient {
 
     private static final String DATE_FORMAT = "yyyy-MM-dd_HH-mm-ss";
 
+    private static final DateTimeFormatter LOCATOR_DATE_FORMAT =
+            DateTimeFormatter.ofPattern("yyyyMMdd'T'HHmmssZ").withZone(ZoneOffset.UTC);
+
     @Autowired
-    public DefaultTeamcityClient(Supplier<RestOperations> restOperationsSupplier, TeamcitySettings settings) {
+    public DefaultTeamcityClient(Supplier<RestOperations> restOperationsSupplier,
+                                 Supplier<HttpAsyncClient> asyncClientSupplier, TeamcitySettings settings,
+                                 TeamcityResponseCache responseCache, TeamcityRequestGovernor governor,
+                                 TeamcityCredentials credentials) {
         this.rest = restOperationsSupplier.get();
+        // the non-blocking client is only started once it is used
+        this.asyncClientSupplier = asyncClientSupplier;
         this.settings = settings;
+        this.responseCache = responseCache;
+        this.pageSizer = new TeamcityPageSizer(settings);
+        this.governor = governor;
+        this.credentials = credentials;
     }
 
     @Override
-    public Map<TeamcityProject, Map<jobData, Set<BaseModel>>> getInstanceProjects(String instanceUrl) {
-        LOG.debug("Enter getInstanceProjects");
-        Map<TeamcityProject, Map<jobData, Set<BaseModel>>> result = new LinkedHashMap<>();
-        for (String projectID : settings.getProjectIds()) {
-            try {
-                String url = joinURL(instanceUrl, new String[]{PROJECT_API_URL_SUFFIX + "/id:" + projectID});
-                ResponseEntity<String> responseEntity = makeRestCall(url);
-                if (responseEntity == null) {
-                    break;
+    public Set<TeamcityProject> discoverProjects(String instanceUrl) {
+        List<RestClientException> failures = new ArrayList<>();
+        Set<TeamcityProject> projects = new LinkedHashSet<>();
+        for (Set<TeamcityProject> discovered : fetchAll(instanceUrl, settings.getProjectIds(),
+                projectID -> discoverProject(instanceUrl, projectID), failures)) {
+            projects.addAll(discovered);
+        }
+        if (!failures.isEmpty()) {
+            Map<TeamcityProject, Map<jobData, Set<BaseModel>>> discovered = new LinkedHashMap<>();
+            projects.forEach(project -> discovered.put(project, new HashMap<>()));
+            throw new TeamcityPartialResultException(failures.get(0), discovered);
+        }
+        return projects;
+    }
+
+    @Override
+    public void visitProjectData(List<TeamcityProject> projects,
+                                 BiConsumer<TeamcityProject, Map<jobData, Set<BaseModel>>> visitor) {
+        if (projects.isEmpty()) {
+            return;
+        }
+        List<RestClientException> failures = new ArrayList<>();
+        // the visited projects are kept without their data, which the visitor has taken over
+        Map<TeamcityProject, Map<jobData, Set<BaseModel>>> visited = new LinkedHashMap<>();
+        visitAll(projects.get(0).getInstanceUrl(), projects, this::fetchProjectData, (project, data) -> {
+            if (data != null) {
+                visitor.accept(project, data);
+                visited.put(project, new HashMap<>());
+            }
+        }, failures);
+        if (!failures.isEmpty()) {
+            throw new TeamcityPartialResultException(failures.get(0), visited);
+        }
+    }
+
+    /**
+     * Runs a fetch for each key, up to {@link TeamcitySettings#getProjectParallelism()} at a time.
+     * Serially the first failure is thrown. In parallel a key that fails does not stop the others:
+     * its failure is added to {@code failures} and its result is left null.
+     *
+     * @return the results in the order of the keys
+     */
+    private <K, R> List<R> fetchAll(String instanceUrl, List<K> keys, Function<K, R> fetch,
+                                    List<RestClientException> failures) {
+        List<R> results = new ArrayList<>();
+        visitAll(instanceUrl, keys, fetch, (key, result) -> results.add(result), failures);
+        return results;
+    }
+
+    /**
+     * Same as {@link #fetchAll}, but hands each result to the visitor, in the order of the keys,
+     * instead of collecting them. In parallel only a window of twice the parallelism is fetched
+     * ahead of the visitor, so at most that many results are held at once.
+     */
+    private <K, R> void visitAll(String instanceUrl, List<K> keys, Function<K, R> fetch, BiConsumer<K, R> visitor,
+                                 List<RestClientException> failures) {
+        int parallelism = settings.getProjectParallelism();
+        if (parallelism <= 1) {
+            for (K key : keys) {
+                visitor.accept(key, fetch.apply(key));
+            }
+            return;
+        }
+        ExecutorService executor = Executors.newFixedThreadPool(parallelism,
+                new CustomizableThreadFactory("teamcity-project-"));
+        try {
+            Deque<Future<R>> window = new ArrayDeque<>();
+            int submitted = 0;
+            for (K key : keys) {
+                while (submitted < keys.size() && window.size() < parallelism * 2) {
+                    K next = keys.get(submitted++);
+                    window.add(executor.submit(() -> fetch.apply(next)));
                 }
+                R result;
+                try {
+                    result = window.poll().get();
+                } catch (ExecutionException ee) {
+                    LOG.error("Error loading project on instance: " + instanceUrl, ee.getCause());
+                    failures.add(ee.getCause() instanceof RestClientException ? (RestClientException) ee.getCause()
+                            : new RestClientException("Error loading project on instance: " + instanceUrl, ee.getCause()));
+                    result = null;
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    throw new RestClientException("Interrupted loading projects on instance: " + instanceUrl, ie);
+                }
+                visitor.accept(key, result);
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Looks up a single configured project, without its builds.
+     *
+     * @param instanceUrl the URL for the Teamcity instance
+     * @param projectID   the TeamCity project id
+     * @return the jobs of the project, empty if the project has none
+     */
+    private Set<TeamcityProject> discoverProject(String instanceUrl, String projectID) {
+        Set<TeamcityProject> result = new LinkedHashSet<>();
+        try {
+            String url = TeamcityFields.select(joinURL(instanceUrl, new String[]{PROJECT_API_URL_SUFFIX + "/id:" + projectID}),
+                    TeamcityFields.PROJECT);
+            TeamcityResponseCache.Entry cached = responseCache.lookup(url);
+            ResponseEntity<String> responseEntity = makeRestCall(url, cached == null ? null : cached.validators());
+            // a 304 with no cached result to reuse, ask for the full response
+            if (responseEntity != null && responseEntity.getStatusCode() == HttpStatus.NOT_MODIFIED && cached == null) {
+                responseEntity = makeRestCall(url);
+                if (responseEntity != null && responseEntity.getStatusCode() == HttpStatus.NOT_MODIFIED) {
+                    throw notModifiedWithoutValidators(url);
+                }
+            }
+            if (responseEntity == null) {
+                return result;
+            }
+            List<String> projectNames;
+            if (responseEntity.getStatusCode() == HttpStatus.NOT_MODIFIED) {
+                projectNames = responseCache.hit(cached);
+            } else {
                 String returnJSON = responseEntity.getBody();
                 if (StringUtils.isEmpty(returnJSON)) {
-                    break;
+                    return result;
                 }
+                projectNames = new ArrayList<>();
                 JSONParser parser = new JSONParser();
                 try {
                     JSONObject object = (JSONObject) parser.parse(returnJSON);
                     JSONArray jobs = getJsonArray(object, "project");
-                    if (jobs.size() == 0) {
-                        break;
-                    }
                     for (Object job : jobs) {
-                        JSONObject jsonJob = (JSONObject) job;
-
-                        final String projectName = getString(jsonJob, "name");
-                        final String projectURL = String.format("%s/%s/id:%s", instanceUrl, PROJECT_API_URL_SUFFIX, projectID);
-                        LOG.debug("Process projectName " + projectName + " projectURL " + projectURL);
-
-                        getProjectDetails(projectID, projectName, projectURL, instanceUrl, result);
+                        projectNames.add(getString((JSONObject) job, "name"));
                     }
                 } catch (ParseException e) {
                     LOG.error("Parsing jobs details on instance: " + instanceUrl, e);
+                    return result;
                 }
-            } catch (RestClientException rce) {
-                LOG.error("client exception loading jobs details", rce);
-                throw rce;
-            } catch (URISyntaxException e1) {
-                LOG.error("wrong syntax url for loading jobs details", e1);
+                responseCache.put(url, responseEntity.getHeaders(), projectNames, ArrayList::new);
+            }
+            for (String projectName : nullSafe(projectNames)) {
+                final String projectURL = String.format("%s/%s/id:%s", instanceUrl, PROJECT_API_URL_SUFFIX, projectID);
+                LOG.debug("Process projectName " + projectName + " projectURL " + projectURL);
+
+                result.add(newProject(projectID, projectName, projectURL, instanceUrl));
             }
+        } catch (RestClientException rce) {
+            LOG.error("client exception loading jobs details", rce);
+            throw rce;
+        } catch (URISyntaxException e1) {
+            LOG.error("wrong syntax url for loading jobs details", e1);
         }
         return result;
     }
 
-    @SuppressWarnings({"PMD.NPathComplexity", "PMD.ExcessiveMethodLength", "PMD.AvoidBranchingStatementAsLastInLoop", "PMD.EmptyIfStmt"})
-    private void getProjectDetails(String projectID, String projectName, String projectURL, String instanceUrl,
-                                   Map<TeamcityProject, Map<jobData, Set<BaseModel>>> result) throws URISyntaxException, ParseException {
-        LOG.debug("getProjectDetails: projectName " + projectName + " projectURL: " + projectURL);
-
-        Map<jobData, Set<BaseModel>> jobDataMap = new HashMap();
+    private TeamcityProject newProject(String projectID, String projectName, String projectURL, String instanceUrl) {
+        LOG.debug("newProject: projectName " + projectName + " projectURL: " + projectURL);
 
         TeamcityProject teamcityProject = new TeamcityProject();
         teamcityProject.setInstanceUrl(instanceUrl);
         teamcityProject.setJobName(projectName);
         teamcityProject.setJobUrl(projectURL);
-        teamcityProject.getOptions().put("projectId", projectID);
-
-        Set<BaseModel> builds = getBuildDetailsForTeamcityProject(projectID, instanceUrl);
-
-        jobDataMap.put(jobData.BUILD, builds);
+        teamcityProject.setProjectId(projectID);
+        return teamcityProject;
+    }
 
-        result.put(teamcityProject, jobDataMap);
+    private Map<jobData, Set<BaseModel>> fetchProjectData(TeamcityProject project) {
+        Map<jobData, Set<BaseModel>> jobDataMap = new HashMap<>();
+        try {
+            jobDataMap.put(jobData.BUILD, getBuildDetailsForTeamcityProject(project.getProjectId(),
+                    project.getInstanceUrl(), project.getLastFinishTime()));
+        } catch (ParseException e) {
+            LOG.error("Parsing builds of project " + project.getProjectId() + " on instance: " + project.getInstanceUrl(), e);
+        } catch (URISyntaxException e1) {
+            LOG.error("wrong syntax url for loading builds", e1);
+        }
+        return jobDataMap;
     }
 
 
-    private Set<BaseModel> getBuildDetailsForTeamcityProjectPaginated(String projectID, String instanceUrl, int startCount, int endCount) throws URISyntaxException, ParseException {
-        Set<BaseModel> builds = new LinkedHashSet<>();
+    /**
+     * Fetches one page of the build list.
+     *
+     * @param url          the url of the page
+     * @param allBuildsUrl the url of the builds endpoint
+     * @param conditional  true to request the page conditionally and cache it
+     * @return the page, or an empty page if it could not be fetched
+     */
+    TeamcityBuildPage getBuildPage(String url, String allBuildsUrl, boolean conditional)
+            throws URISyntaxException, ParseException {
         try {
-            String allBuildsUrl = joinURL(instanceUrl, new String[]{BUILD_DETAILS_URL_SUFFIX});
-            LOG.info("Fetching builds for project {}", allBuildsUrl);
-            String url = joinURL(allBuildsUrl, new String[]{String.format("?locator=project:%s,count:%d,start:%d", projectID, endCount, startCount)});
-            ResponseEntity<String> responseEntity = makeRestCall(url);
+            LOG.info("Fetching builds {}", url);
+            TeamcityResponseCache.Entry cached = conditional ? responseCache.lookup(url) : null;
+            HttpHeaders validators = cached == null ? null : cached.validators();
+            if (settings.isStreamingParser()) {
+                TeamcityBuildPage page = makeStreamingCall(url, validators, response -> {
+                    if (response.getStatusCode() == HttpStatus.NOT_MODIFIED) {
+                        return null;
+                    }
+                    TeamcityBuildPage parsed = streamParser.parseBuildList(response.getBody(), allBuildsUrl, settings.isHydrateInList());
+                    if (conditional) {
+                        responseCache.put(url, response.getHeaders(), parsed, TeamcityBuildPage::copy);
+                    }
+                    return parsed;
+                });
+                return page == null ? notModifiedPage(cached, conditional, url, allBuildsUrl) : page;
+            }
+            ResponseEntity<String> responseEntity = makeRestCall(url, validators);
+            if (responseEntity.getStatusCode() == HttpStatus.NOT_MODIFIED) {
+                return notModifiedPage(cached, conditional, url, allBuildsUrl);
+            }
             String returnJSON = responseEntity.getBody();
             if (StringUtils.isEmpty(returnJSON)) {
-                return Collections.emptySet();
+                return TeamcityBuildPage.EMPTY;
             }
             JSONParser parser = new JSONParser();
             JSONObject object = (JSONObject) parser.parse(returnJSON);
 
             if (object.isEmpty()) {
-                return Collections.emptySet();
+                return TeamcityBuildPage.EMPTY;
             }
+            Set<BaseModel> builds = new LinkedHashSet<>();
             JSONArray jsonBuilds = getJsonArray(object, "build");
             for (Object build : jsonBuilds) {
                 JSONObject jsonBuild = (JSONObject) build;
                 // A basic Build object. This will be fleshed out later if this is a new Build.
                 String buildID = jsonBuild.get("id").toString();
-                String buildNumber = jsonBuild.get("number").toString();
-                LOG.debug(" buildNumber: " + buildNumber);
+                LOG.debug(" buildNumber: " + jsonBuild.get("number"));
                 Build teamcityBuild = new Build();
-                teamcityBuild.setNumber(buildNumber);
-                String buildURL = String.format("%s?locator=id:%s", allBuildsUrl, buildID); //String buildURL = getString(jsonBuild, "webUrl");
+                teamcityBuild.setNumber(displayNumber(getString(jsonBuild, "number"), buildID));
+                String buildURL = buildUrl(allBuildsUrl, buildID); //String buildURL = getString(jsonBuild, "webUrl");
                 LOG.debug(" Adding Build: " + buildURL);
                 teamcityBuild.setBuildUrl(buildURL);
                 teamcityBuild.setBuildStatus(getBuildStatus(jsonBuild));
+                // the finish time moves the project's cursor
+                if (jsonBuild.get("finishDate") != null) {
+                    teamcityBuild.setEndTime(getTimeInMillis(jsonBuild.get("finishDate").toString()));
+                }
+                if (settings.isHydrateInList()) {
+                    teamcityBuild = hydrate(teamcityBuild, jsonBuild);
+                }
                 builds.add(teamcityBuild);
             }
+            TeamcityBuildPage page = new TeamcityBuildPage(builds, getString(object, "nextHref"), returnJSON.length());
+            if (conditional) {
+                responseCache.put(url, responseEntity.getHeaders(), page, TeamcityBuildPage::copy);
+            }
+            return page;
         } catch (HttpClientErrorException hce) {
             LOG.error("http client exception loading build details", hce);
         }
-        return builds;
+        return TeamcityBuildPage.EMPTY;
+    }
 
+    /**
+     * The page of a 304: the page cached with the validators the request was made with. A 304
+     * to a request made without validators has no page to reuse, the page is fetched again in full.
+     */
+    private TeamcityBuildPage notModifiedPage(TeamcityResponseCache.Entry cached, boolean conditional, String url,
+                                              String allBuildsUrl) throws URISyntaxException, ParseException {
+        if (cached != null) {
+            return responseCache.hit(cached);
+        }
+        if (!conditional) {
+            throw notModifiedWithoutValidators(url);
+        }
+        LOG.info("Not modified without a cached page, fetching {} again", url);
+        return getBuildPage(url, allBuildsUrl, false);
+    }
+
+    private static RestClientException notModifiedWithoutValidators(String url) {
+        return new RestClientException("Not modified answered to a request without validators: " + url);
+    }
+
+    /**
+     * Populates a build from the full build fields of a hydrated build list. Falls back to the
+     * summary, which gets its details fetched separately, if the list entry is incomplete.
+     */
+    private Build hydrate(Build summary, JSONObject jsonBuild) {
+        try {
+            Build build = toBuild(jsonBuild, summary.getBuildUrl());
+            if (build != null) {
+                return build;
+            }
+        } catch (RuntimeException re) {
+            LOG.debug("Incomplete build in list, details will be fetched. URL=" + summary.getBuildUrl(), re);
+        }
+        return summary;
+    }
+
+    /**
+     * Builds the locator for a page of a project's builds. When the finish time the project has
+     * been ingested up to is known, only the builds that finished after it, less the lookback, are
+     * requested, otherwise the full history is walked.
+     *
+     * The cursor is a finish time rather than a build id: a long build that started before a
+     * shorter one has a lower id but finishes later, and would be skipped by a build id cursor.
+     */
+    String buildsLocator(String projectID, long lastFinishTime, int count) {
+        if (lastFinishTime <= 0 || settings.isFullResync()) {
+            return String.format("project:%s,count:%d", projectID, count);
+        }
+        return String.format("project:%s,finishDate:(date:%s,condition:after),count:%d", projectID,
+                locatorDate(lastFinishTime - settings.getFinishDateLookback()), count);
+    }
+
+    /**
+     * Formats a time as a TeamCity locator date, with the + of the offset escaped for the query.
+     */
+    static String locatorDate(long millis) {
+        return LOCATOR_DATE_FORMAT.format(Instant.ofEpochMilli(millis)).replace("+", "%2B");
     }
 
-    private Set<BaseModel> getBuildDetailsForTeamcityProject(String projectID, String instanceUrl) throws URISyntaxException, ParseException {
+    /**
+     * Fetches the build list of a project page by page, following the nextHref of each page
+     * until the last one. The size of every page after the first adapts to how the server
+     * answered the previous ones.
+     */
+    private Set<BaseModel> getBuildDetailsForTeamcityProject(String projectID, String instanceUrl, long lastFinishTime) throws URISyntaxException, ParseException {
         Set<BaseModel> allBuilds = new LinkedHashSet<>();
-        int startCount = 0;
-        int endCount = 100;
-        while (true) {
-            Set<BaseModel> builds = getBuildDetailsForTeamcityProjectPaginated(projectID, instanceUrl, startCount, endCount);
-            if (builds.isEmpty()) {
+        String allBuildsUrl = joinURL(instanceUrl, new String[]{BUILD_DETAILS_URL_SUFFIX});
+        // the first page keeps a fixed size so its url, and the validators cached for it, stay the same between runs
+        String url = TeamcityFields.select(
+                joinURL(allBuildsUrl, new String[]{"?locator=" + buildsLocator(projectID, lastFinishTime, settings.getPageSize())}),
+                settings.isHydrateInList() ? TeamcityFields.HYDRATED_BUILD_LIST : TeamcityFields.BUILD_LIST);
+        boolean firstPage = true;
+        while (url != null) {
+            long pageStart = System.currentTimeMillis();
+            TeamcityBuildPage page = getBuildPage(url, allBuildsUrl, firstPage);
+            if (page.getBuilds().isEmpty()) {
                 break;
             }
-            allBuilds.addAll(builds);
-            startCount += 100;
-//            endCount = endCount + 100;
+            pageSizer.record(instanceUrl, page.getBuilds().size(), System.currentTimeMillis() - pageStart, page.getBytes());
+            allBuilds.addAll(page.getBuilds());
+            url = nextPageUrl(instanceUrl, page.getNextHref(), pageSizer.size(instanceUrl));
+            firstPage = false;
         }
         return allBuilds;
     }
 
+    /**
+     * Resolves the server relative nextHref of a page against the instance, with the given page size.
+     *
+     * @return the url of the next page, or null if there is none
+     */
+    static String nextPageUrl(String instanceUrl, String nextHref, int count) {
+        if (StringUtils.isEmpty(nextHref)) {
+            return null;
+        }
+        String href = nextHref.replaceFirst("count:\\d+", "count:" + count);
+        return URI.create(instanceUrl).resolve(href).toString();
+    }
+
+
+    @Override
+    public Map<String, String> getBuildNumbers(TeamcityProject project) {
+        Map<String, String> numbers = new HashMap<>();
+        String instanceUrl = project.getInstanceUrl();
+        String allBuildsUrl = joinURL(instanceUrl, new String[]{BUILD_DETAILS_URL_SUFFIX});
+        String url = TeamcityFields.select(joinURL(allBuildsUrl, new String[]{"?locator="
+                + buildsLocator(project.getProjectId(), 0, settings.getMaxPageSize())}), TeamcityFields.BUILD_LIST);
+        try {
+            while (url != null) {
+                TeamcityBuildPage page = getBuildPage(url, allBuildsUrl, false);
+                for (BaseModel build : page.getBuilds()) {
+                    numbers.put(((Build) build).getBuildUrl(), ((Build) build).getNumber());
+                }
+                url = page.getBuilds().isEmpty() ? null
+                        : nextPageUrl(instanceUrl, page.getNextHref(), settings.getMaxPageSize());
+            }
+        } catch (URISyntaxException | ParseException e) {
+            throw new RestClientException("Error reading the build numbers of project " + project.getProjectId()
+                    + " on instance: " + instanceUrl, e);
+        }
+        return numbers;
+    }
 
     @Override
     public Build getBuildDetails(String buildUrl, String instanceUrl) {
-        String formattedBuildUrl = formatBuildUrl(buildUrl);
+        String formattedBuildUrl = buildUrl;
 
         try {
             LOG.debug("buildUrl: " + buildUrl);
             LOG.debug("formattedBuildUrl: " + formattedBuildUrl);
-            String url = rebuildJobUrl(formattedBuildUrl, instanceUrl);
-            ResponseEntity<String> result = makeRestCall(url);
-            String resultJSON = result.getBody();
-            if (StringUtils.isEmpty(resultJSON)) {
-                LOG.error("Error getting build details for. URL=" + url);
-                return null;
-            }
-            JSONParser parser = new JSONParser();
-            try {
-                JSONObject buildJson = (JSONObject) parser.parse(resultJSON);
-//                JSONObject buildDetails = (JSONObject) ((JSONArray) buildJson.get("build")).get(0);
-                String buildStatus = buildJson.get("state").toString();
-                // Ignore jobs that are building
-                if (buildStatus != "finished") {
-                    Build build = new Build();
-                    long startTime = getTimeInMillis(buildJson.get("startDate").toString());
-                    long endTime = getTimeInMillis(buildJson.get("finishDate").toString());
-                    long duration = endTime - startTime;
-                    build.setNumber(buildJson.get("id").toString());
-                    build.setBuildUrl(formattedBuildUrl);
-                    build.setTimestamp(System.currentTimeMillis());
-                    build.setStartTime(startTime);
-                    build.setEndTime(endTime);
-                    build.setDuration(duration);
-                    build.setBuildStatus(getBuildStatus(buildJson));
-
-                    //For git SCM, add the repoBranches. For other SCM types, it's handled while adding changesets
-                    build.getCodeRepos().addAll(getGitRepoBranch(buildJson));
-
-
-                    // Need to handle duplicate changesets bug in Pipeline jobs (https://issues.jenkins-ci.org/browse/JENKINS-40352)
-                    Set<String> commitIds = new HashSet<>();
-                    // This is empty for git
-                    Set<String> revisions = new HashSet<>();
-
-                    JSONObject changeSet = (JSONObject) buildJson.get("changeSet");
-                    if (changeSet != null) {
-                        addChangeSet(build, changeSet, commitIds, revisions);
-                    }
-                    return build;
-                }
-
-            } catch (ParseException e) {
-                LOG.error("Parsing build: " + formattedBuildUrl, e);
+            String url = buildDetailsUrl(formattedBuildUrl, instanceUrl);
+            if (settings.isStreamingParser()) {
+                return makeStreamingCall(url, response -> streamParser.parseBuild(response.getBody(), formattedBuildUrl));
             }
+            ResponseEntity<String> result = makeRestCall(url);
+            return parseBuildDetails(result.getBody(), formattedBuildUrl);
         } catch (RestClientException rce) {
             LOG.error("Client exception loading build details: " + rce.getMessage() + ". URL =" + formattedBuildUrl);
         } catch (MalformedURLException mfe) {
@@ -245,7 +497,176 @@ public class DefaultTeamcityClient implements TeamcityClient {
         return null;
     }
 
-    private long getTimeInMillis(String startDate) {
+    /**
+     * The request waits for the governor and the response on the non-blocking client, and the
+     * response is parsed off its I/O threads. Build details are requested once per new build, so,
+     * like {@link #getBuildDetails(String, String)}, they are neither conditional nor cached.
+     */
+    @Override
+    public CompletableFuture<Build> getBuildDetailsAsync(String buildUrl, String instanceUrl) {
+        URI thisuri;
+        try {
+            thisuri = URI.create(buildDetailsUrl(buildUrl, instanceUrl));
+        } catch (MalformedURLException | URISyntaxException | UnsupportedEncodingException | IllegalArgumentException e) {
+            LOG.error("Malformed url for loading build details" + e.getMessage() + ". URL =" + buildUrl);
+            return CompletableFuture.completedFuture(null);
+        }
+        HttpGet request = new HttpGet(thisuri);
+        HttpHeaders headers = authHeaders(thisuri.toString(), thisuri);
+        if (headers != null) {
+            headers.forEach((name, values) -> values.forEach(value -> request.addHeader(name, value)));
+        }
+        return governor.acquireAsync(thisuri)
+                .thenCompose(permit -> executeAsync(request, permit))
+                .thenApplyAsync(response -> readBuildDetails(response, buildUrl))
+                .exceptionally(e -> {
+                    Throwable cause = e instanceof CompletionException && e.getCause() != null ? e.getCause() : e;
+                    LOG.error("Client exception loading build details: " + cause.getMessage() + ". URL =" + buildUrl);
+                    return null;
+                });
+    }
+
+    private CompletableFuture<HttpResponse> executeAsync(HttpGet request, TeamcityRequestGovernor.Permit permit) {
+        LOG.debug("Enter executeAsync " + request.getURI());
+        CompletableFuture<HttpResponse> result = new CompletableFuture<>();
+        try {
+            asyncClientSupplier.get().execute(request, new FutureCallback<HttpResponse>() {
+                @Override
+                public void completed(HttpResponse response) {
+                    permit.status(response.getStatusLine().getStatusCode());
+                    permit.close();
+                    result.complete(response);
+                }
+
+                @Override
+                public void failed(Exception ex) {
+                    permit.close();
+                    result.completeExceptionally(ex);
+                }
+
+                @Override
+                public void cancelled() {
+                    permit.close();
+                    result.cancel(false);
+                }
+            });
+        } catch (RuntimeException re) {
+            permit.close();
+            result.completeExceptionally(re);
+        }
+        return result;
+    }
+
+    private Build readBuildDetails(HttpResponse response, String buildUrl) {
+        int status = response.getStatusLine().getStatusCode();
+        if (status >= HttpStatus.BAD_REQUEST.value()) {
+            throw new RestClientException(status + " " + response.getStatusLine().getReasonPhrase());
+        }
+        if (response.getEntity() == null) {
+            return parseBuildDetails(null, buildUrl);
+        }
+        try {
+            if (settings.isStreamingParser()) {
+                try (InputStream body = response.getEntity().getContent()) {
+                    return streamParser.parseBuild(body, buildUrl);
+                }
+            }
+            return parseBuildDetails(EntityUtils.toString(response.getEntity(), StandardCharsets.UTF_8), buildUrl);
+        } catch (IOException e) {
+            throw new ResourceAccessException("I/O error reading build details: " + e.getMessage(), e);
+        }
+    }
+
+    private String buildDetailsUrl(String formattedBuildUrl, String instanceUrl)
+            throws URISyntaxException, MalformedURLException, UnsupportedEncodingException {
+        return TeamcityFields.select(rebuildJobUrl(formattedBuildUrl, instanceUrl), TeamcityFields.BUILD);
+    }
+
+    /**
+     * Parses the response of the build detail endpoint.
+     *
+     * @param resultJSON        the response body
+     * @param formattedBuildUrl the url of the build
+     * @return the Build, or null if the response is empty, can not be parsed or the build is still building
+     */
+    private Build parseBuildDetails(String resultJSON, String formattedBuildUrl) {
+        if (StringUtils.isEmpty(resultJSON)) {
+            LOG.error("Error getting build details for. URL=" + formattedBuildUrl);
+            return null;
+        }
+        JSONParser parser = new JSONParser();
+        try {
+            JSONObject buildJson = (JSONObject) parser.parse(resultJSON);
+            return toBuild(buildJson, formattedBuildUrl);
+        } catch (ParseException e) {
+            LOG.error("Parsing build: " + formattedBuildUrl, e);
+        }
+        return null;
+    }
+
+    /**
+     * Maps the JSON of a single build to a fully populated Build.
+     *
+     * @param buildJson the build from the detail endpoint, or from a hydrated build list
+     * @param buildUrl  the url of the build
+     * @return the Build, or null if it is still building
+     */
+    private Build toBuild(JSONObject buildJson, String buildUrl) {
+        // Ignore jobs that are building
+        if (!isFinished(getString(buildJson, "state"))) {
+            return null;
+        }
+        Build build = new Build();
+        long startTime = getTimeInMillis(buildJson.get("startDate").toString());
+        long endTime = getTimeInMillis(buildJson.get("finishDate").toString());
+        long duration = endTime - startTime;
+        build.setNumber(displayNumber(getString(buildJson, "number"), buildJson.get("id").toString()));
+        build.setBuildUrl(buildUrl);
+        build.setTimestamp(System.currentTimeMillis());
+        build.setStartTime(startTime);
+        build.setEndTime(endTime);
+        build.setDuration(duration);
+        build.setBuildStatus(getBuildStatus(buildJson));
+        addSourceChanges(build, (Map<?, ?>) buildJson.get("revisions"), (Map<?, ?>) buildJson.get("changes"));
+        return build;
+    }
+
+    /**
+     * @param state the state of a build
+     * @return true if the build has finished, false if it is queued or still running
+     */
+    static boolean isFinished(String state) {
+        return "finished".equals(state);
+    }
+
+    /**
+     * The url a build is stored under, which identifies it within its job. It holds the TeamCity
+     * build id, as the build number is free-form text that is not unique within a project.
+     *
+     * @param allBuildsUrl the url of the builds endpoint
+     * @param buildId      the TeamCity build id
+     * @return the canonical build url
+     */
+    static String buildUrl(String allBuildsUrl, String buildId) {
+        return String.format("%s/id:%s", allBuildsUrl, buildId);
+    }
+
+    /**
+     * @param buildUrl a canonical build url
+     * @return the TeamCity build id of the build
+     */
+    static long buildId(String buildUrl) {
+        return Long.parseLong(buildUrl.substring(buildUrl.lastIndexOf("id:") + 3));
+    }
+
+    /**
+     * The number shown for a build: its TeamCity build number, or the build id if it has none.
+     */
+    static String displayNumber(String number, String buildId) {
+        return StringUtils.isEmpty(number) ? buildId : number;
+    }
+
+    static long getTimeInMillis(String startDate) {
         DateTimeFormatter formatter = DateTimeFormatter.ofPattern("yyyyMMdd'T'HHmmss");
         String dateWithoutOffset = startDate.substring(0,15);
         String offset = startDate.substring(15);
@@ -255,11 +676,6 @@ public class DefaultTeamcityClient implements TeamcityClient {
         return formattedDateTime.atOffset(zoneOffset).toEpochSecond()*1000;
     }
 
-    //to get all the details (time, started, end)
-    private String formatBuildUrl(String buildUrl) {
-       return buildUrl.split("\\?")[0] + "/" + buildUrl.split("=")[1];
-    }
-
     //This method will rebuild the API endpoint because the buildUrl obtained via Jenkins API
     //does not save the auth user info and we need to add it back.
     public static String rebuildJobUrl(String build, String server) throws URISyntaxException, MalformedURLException, UnsupportedEncodingException {
@@ -282,102 +698,86 @@ public class DefaultTeamcityClient implements TeamcityClient {
 
 
     /**
-     * Grabs changeset information for the given build.
+     * Adds the repos a build was built from and the changes it contains, from the revisions and
+     * changes of a build response. The responses of both parsers are read as maps: the nested
+     * objects of a JSON-simple build are maps and lists, and the stream parser reads them as such.
+     * When a build was built from a single repo, its changes are associated with that repo.
      *
-     * @param build     a Build
-     * @param changeSet the build JSON object
-     * @param commitIds the commitIds
-     * @param revisions the revisions
+     * @param build     the build
+     * @param revisions the revisions object of the build, or null
+     * @param changes   the changes object of the build, or null
      */
-    private void addChangeSet(Build build, JSONObject changeSet, Set<String> commitIds, Set<String> revisions) {
-        String scmType = getString(changeSet, "kind");
-        Map<String, RepoBranch> revisionToUrl = new HashMap<>();
-
-        // Build a map of revision to module (scm url). This is not always
-        // provided by the Hudson API, but we can use it if available.
-        // For git, this map is empty.
-        for (Object revision : getJsonArray(changeSet, "revisions")) {
-            JSONObject json = (JSONObject) revision;
-            String revisionId = json.get("revision").toString();
-            if (StringUtils.isNotEmpty(revisionId) && !revisions.contains(revisionId)) {
-                RepoBranch rb = new RepoBranch();
-                rb.setUrl(getString(json, "module"));
-                rb.setType(RepoBranch.RepoType.fromString(scmType));
-                revisionToUrl.put(revisionId, rb);
-                build.getCodeRepos().add(rb);
-            }
+    static void addSourceChanges(Build build, Map<?, ?> revisions, Map<?, ?> changes) {
+        Set<RepoBranch> repos = new LinkedHashSet<>();
+        for (Map<?, ?> revision : entries(revisions, "revision")) {
+            Map<?, ?> root = (Map<?, ?>) revision.get("vcs-root-instance");
+            repos.add(repoBranch(root == null ? null : text(root.get("vcsName")),
+                    root == null ? null : text(root.get("name")), text(revision.get("vcsBranchName"))));
         }
-
-        for (Object item : getJsonArray(changeSet, "items")) {
-            JSONObject jsonItem = (JSONObject) item;
-            String commitId = getRevision(jsonItem);
-            if (StringUtils.isNotEmpty(commitId) && !commitIds.contains(commitId)) {
-                SCM scm = new SCM();
-                scm.setScmAuthor(getCommitAuthor(jsonItem));
-                scm.setScmCommitLog(getString(jsonItem, "msg"));
-                scm.setScmCommitTimestamp(getCommitTimestamp(jsonItem));
-                scm.setScmRevisionNumber(commitId);
-                RepoBranch repoBranch = revisionToUrl.get(scm.getScmRevisionNumber());
-                if (repoBranch != null) {
-                    scm.setScmUrl(repoBranch.getUrl());
-                    scm.setScmBranch(repoBranch.getBranch());
-                }
-
-                scm.setNumberOfChanges(getJsonArray(jsonItem, "paths").size());
-                build.getSourceChangeSet().add(scm);
-                commitIds.add(commitId);
+        build.getCodeRepos().addAll(repos);
+        RepoBranch repo = repos.size() == 1 ? repos.iterator().next() : null;
+        for (Map<?, ?> change : entries(changes, "change")) {
+            String version = text(change.get("version"));
+            if (StringUtils.isEmpty(version)) {
+                continue;
+            }
+            SCM scm = new SCM();
+            scm.setScmRevisionNumber(version);
+            scm.setScmAuthor(text(change.get("username")));
+            scm.setScmCommitLog(StringUtils.trim(text(change.get("comment"))));
+            String date = text(change.get("date"));
+            if (StringUtils.isNotEmpty(date)) {
+                scm.setScmCommitTimestamp(getTimeInMillis(date));
+            }
+            if (repo != null) {
+                scm.setScmUrl(repo.getUrl());
+                scm.setScmBranch(repo.getBranch());
             }
+            build.getSourceChangeSet().add(scm);
         }
     }
 
     /**
-     * Gathers repo urls, and the branch name from the last built revision.
-     * Filters out the qualifiers from the branch name and sets the unqualified branch name.
-     * We assume that all branches are in remotes/origin.
+     * The repo and branch of a revision. TeamCity names the VCS roots it creates from a url after
+     * the url and branch spec, as in https://host/repo#refs/heads/master, so the url is the name
+     * without the branch spec.
+     *
+     * @param vcsName    the VCS support of the root, such as jetbrains.git or svn
+     * @param rootName   the name of the VCS root instance
+     * @param branchName the branch of the revision, such as refs/heads/master
      */
+    static RepoBranch repoBranch(String vcsName, String rootName, String branchName) {
+        // RepoBranch compares the url and branch, neither may be null
+        String url = rootName == null ? "" : removeGitExtensionFromUrl(rootName.split("#")[0]);
+        String branch = branchName == null ? "" : branchName.replaceFirst("^refs/heads/", "");
+        RepoBranch.RepoType type = RepoBranch.RepoType.Unknown;
+        if (StringUtils.containsIgnoreCase(vcsName, "git")) {
+            type = RepoBranch.RepoType.GIT;
+        } else if (StringUtils.containsIgnoreCase(vcsName, "svn")) {
+            type = RepoBranch.RepoType.SVN;
+        }
+        return new RepoBranch(url, branch, type);
+    }
 
-    @SuppressWarnings("PMD")
-    private List<RepoBranch> getGitRepoBranch(JSONObject buildJson) {
-        List<RepoBranch> list = new ArrayList<>();
-
-        JSONArray actions = getJsonArray(buildJson, "actions");
-        for (Object action : actions) {
-            JSONObject jsonAction = (JSONObject) action;
-            if (jsonAction.size() > 0) {
-                JSONObject lastBuiltRevision = null;
-                JSONArray branches = null;
-                JSONArray remoteUrls = getJsonArray((JSONObject) action, "remoteUrls");
-                if (!remoteUrls.isEmpty()) {
-                    lastBuiltRevision = (JSONObject) jsonAction.get("lastBuiltRevision");
-                }
-                if (lastBuiltRevision != null) {
-                    branches = getJsonArray(lastBuiltRevision, "branch");
-                }
-                // As of git plugin 3.0.0, when multiple repos are configured in the git plugin itself instead of MultiSCM plugin,
-                // they are stored unordered in a HashSet. So it's buggy and we cannot associate the correct branch information.
-                // So for now, we loop through all the remoteUrls and associate the built branch(es) with all of them.
-                if (branches != null && !branches.isEmpty()) {
-                    for (Object url : remoteUrls) {
-                        String sUrl = (String) url;
-                        if (sUrl != null && !sUrl.isEmpty()) {
-                            sUrl = removeGitExtensionFromUrl(sUrl);
-                            for (Object branchObj : branches) {
-                                String branchName = getString((JSONObject) branchObj, "name");
-                                if (branchName != null) {
-                                    String unqualifiedBranchName = getUnqualifiedBranch(branchName);
-                                    RepoBranch grb = new RepoBranch(sUrl, unqualifiedBranchName, RepoBranch.RepoType.GIT);
-                                    list.add(grb);
-                                }
-                            }
-                        }
-                    }
+    // the entries of a TeamCity collection object, such as the revision list of {"count":1,"revision":[...]}
+    private static List<Map<?, ?>> entries(Map<?, ?> collection, String entry) {
+        List<Map<?, ?>> entries = new ArrayList<>();
+        Object list = collection == null ? null : collection.get(entry);
+        if (list instanceof List) {
+            for (Object item : (List<?>) list) {
+                if (item instanceof Map) {
+                    entries.add((Map<?, ?>) item);
                 }
             }
         }
-        return list;
+        return entries;
+    }
+
+    private static String text(Object value) {
+        return value == null ? null : value.toString();
     }
 
-    private String removeGitExtensionFromUrl(String url) {
+    private static String removeGitExtensionFromUrl(String url) {
         String sUrl = url;
         //remove .git from the urls
         if (sUrl.endsWith(".git")) {
@@ -386,50 +786,6 @@ public class DefaultTeamcityClient implements TeamcityClient {
         return sUrl;
     }
 
-    /**
-     * Gets the unqualified branch name given the qualified one of the following forms:
-     * 1. refs/remotes/<remote name>/<branch name>
-     * 2. remotes/<remote name>/<branch name>
-     * 3. origin/<branch name>
-     * 4. <branch name>
-     *
-     * @param qualifiedBranch
-     * @return the unqualified branch name
-     */
-
-    private String getUnqualifiedBranch(String qualifiedBranch) {
-        String branchName = qualifiedBranch;
-        Pattern pattern = Pattern.compile("(refs/)?remotes/[^/]+/(.*)|(origin[0-9]*/)?(.*)");
-        Matcher matcher = pattern.matcher(branchName);
-        if (matcher.matches()) {
-            if (matcher.group(2) != null) {
-                branchName = matcher.group(2);
-            } else if (matcher.group(4) != null) {
-                branchName = matcher.group(4);
-            }
-        }
-        return branchName;
-    }
-
-    private long getCommitTimestamp(JSONObject jsonItem) {
-        if (jsonItem.get("timestamp") != null) {
-            return (Long) jsonItem.get("timestamp");
-        } else if (jsonItem.get("date") != null) {
-            String dateString = (String) jsonItem.get("date");
-            try {
-                return new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS").parse(dateString).getTime();
-            } catch (java.text.ParseException e) {
-                // Try an alternate date format...looks like this one is used by Git
-                try {
-                    return new SimpleDateFormat("yyyy-MM-dd HH:mm:ss Z").parse(dateString).getTime();
-                } catch (java.text.ParseException e1) {
-                    LOG.error("Invalid date string: " + dateString, e);
-                }
-            }
-        }
-        return 0;
-    }
-
     private String getString(JSONObject json, String key) {
         return (String) json.get(key);
     }
@@ -450,12 +806,6 @@ public class DefaultTeamcityClient implements TeamcityClient {
         return 0;
     }
 
-    private String getRevision(JSONObject jsonItem) {
-        // Use revision if provided, otherwise use id
-        Long revision = (Long) jsonItem.get("revision");
-        return revision == null ? getString(jsonItem, "id") : revision.toString();
-    }
-
     private JSONArray getJsonArray(JSONObject json, String key) {
         Object array = json.get(key);
         return array == null ? new JSONArray() : (JSONArray) array;
@@ -474,14 +824,14 @@ public class DefaultTeamcityClient implements TeamcityClient {
         return getString(author, "fullName");
     }
 
-    private String getCommitAuthor(JSONObject jsonItem) {
-        // Use user if provided, otherwise use author.fullName
-        JSONObject author = (JSONObject) jsonItem.get("author");
-        return author == null ? getString(jsonItem, "user") : getFullName(author);
+    private BuildStatus getBuildStatus(JSONObject buildJson) {
+        return getBuildStatus(getString(buildJson, "status"));
     }
 
-    private BuildStatus getBuildStatus(JSONObject buildJson) {
-        String status = buildJson.get("status").toString();
+    static BuildStatus getBuildStatus(String status) {
+        if (status == null) {
+            return BuildStatus.Unknown;
+        }
         switch (status) {
             case "SUCCESS":
                 return BuildStatus.Success;
@@ -496,76 +846,110 @@ public class DefaultTeamcityClient implements TeamcityClient {
         }
     }
 
-    @SuppressWarnings("PMD")
     protected ResponseEntity<String> makeRestCall(String sUrl) throws URISyntaxException {
+        return makeRestCall(sUrl, null);
+    }
+
+    /**
+     * Makes a GET call with additional request headers, such as conditional request validators.
+     */
+    protected ResponseEntity<String> makeRestCall(String sUrl, HttpHeaders requestHeaders) throws URISyntaxException {
         LOG.debug("Enter makeRestCall " + sUrl);
         URI thisuri = URI.create(sUrl);
-        String userInfo = thisuri.getUserInfo();
+        HttpHeaders headers = withHeaders(authHeaders(sUrl, thisuri), requestHeaders);
+        try (TeamcityRequestGovernor.Permit permit = governor.acquire(thisuri)) {
+            try {
+                ResponseEntity<String> response;
+                // Basic Auth only.
+                if (headers != null) {
+                    LOG.debug("make rest call with headers");
+                    LOG.debug("hitting url:" + thisuri);
+                    response = rest.exchange(thisuri, HttpMethod.GET,
+                            new HttpEntity<>(headers),
+                            String.class);
+                } else {
+                    LOG.debug("make rest call without headers");
+                    response = rest.exchange(thisuri, HttpMethod.GET, null,
+                            String.class);
+                }
+                permit.status(response.getStatusCode().value());
+                return response;
+            } catch (HttpStatusCodeException hsce) {
+                permit.status(hsce.getStatusCode().value());
+                throw hsce;
+            }
+        }
+    }
 
-        //get userinfo from URI or settings (in spring properties)
-        if (StringUtils.isEmpty(userInfo)) {
-            List<String> servers = this.settings.getServers();
-            List<String> usernames = this.settings.getUsernames();
-            List<String> apiKeys = this.settings.getApiKeys();
-            if (CollectionUtils.isNotEmpty(servers) && CollectionUtils.isNotEmpty(usernames) && CollectionUtils.isNotEmpty(apiKeys)) {
-                boolean exactMatchFound = false;
-                for (int i = 0; i < servers.size(); i++) {
-                    if ((servers.get(i) != null)) {
-                        String domain1 = getDomain(sUrl);
-                        String domain2 = getDomain(servers.get(i));
-                        if (StringUtils.isNotEmpty(domain1) && StringUtils.isNotEmpty(domain2) && Objects.equals(domain1, domain2)
-                                && getPort(sUrl) == getPort(servers.get(i))) {
-                            exactMatchFound = true;
-                        }
-                        if (exactMatchFound && (i < usernames.size()) && (i < apiKeys.size())
-                                && (StringUtils.isNotEmpty(usernames.get(i))) && (StringUtils.isNotEmpty(apiKeys.get(i)))) {
-                            userInfo = usernames.get(i) + ":" + apiKeys.get(i);
-                        }
-                        if (exactMatchFound) {
-                            break;
-                        }
+    /**
+     * Same as {@link #makeRestCall(String)}, but hands the response stream to the extractor
+     * instead of reading the body into a String.
+     */
+    protected <T> T makeStreamingCall(String sUrl, ResponseExtractor<T> extractor) throws URISyntaxException {
+        return makeStreamingCall(sUrl, null, extractor);
+    }
+
+    protected <T> T makeStreamingCall(String sUrl, HttpHeaders requestHeaders, ResponseExtractor<T> extractor) throws URISyntaxException {
+        LOG.debug("Enter makeStreamingCall " + sUrl);
+        URI thisuri = URI.create(sUrl);
+        HttpHeaders headers = withHeaders(authHeaders(sUrl, thisuri), requestHeaders);
+        try (TeamcityRequestGovernor.Permit permit = governor.acquire(thisuri)) {
+            try {
+                return rest.execute(thisuri, HttpMethod.GET, request -> {
+                    if (headers != null) {
+                        request.getHeaders().putAll(headers);
                     }
-                }
-                if (!exactMatchFound) {
-                    LOG.warn("Credentials for the following url was not found. This could happen if the domain/subdomain/IP address "
-                            + "in the build url returned by Jenkins and the Jenkins instance url in your Hygieia configuration do not match: "
-                            + "\"" + sUrl + "\"");
-                }
+                }, response -> {
+                    permit.status(response.getRawStatusCode());
+                    return extractor.extractData(response);
+                });
+            } catch (HttpStatusCodeException hsce) {
+                permit.status(hsce.getStatusCode().value());
+                throw hsce;
             }
         }
-        // Basic Auth only.
+    }
+
+    /**
+     * Basic Auth headers for a url, from the user info of the url or the credentials configured for its server.
+     *
+     * @return the headers, or null if there are no credentials for the url
+     */
+    private HttpHeaders authHeaders(String sUrl, URI thisuri) {
+        String userInfo = thisuri.getUserInfo();
         if (StringUtils.isNotEmpty(userInfo)) {
-            LOG.debug("make rest call with headers");
-            LOG.debug("hitting url:" + thisuri);
-            return rest.exchange(thisuri, HttpMethod.GET,
-                    new HttpEntity<>(createHeaders(userInfo)),
-                    String.class);
-        } else {
-            LOG.debug("make rest call without headers");
-            return rest.exchange(thisuri, HttpMethod.GET, null,
-                    String.class);
+            return createHeaders(userInfo);
         }
+        if (credentials.isUnknownServer(thisuri)) {
+            LOG.warn("Credentials for the following url was not found. This could happen if the domain/subdomain/IP address "
+                    + "in the build url returned by Jenkins and the Jenkins instance url in your Hygieia configuration do not match: "
+                    + "\"" + sUrl + "\"");
+        }
+        return credentials.headers(thisuri);
+    }
 
+    private HttpHeaders withHeaders(HttpHeaders authHeaders, HttpHeaders requestHeaders) {
+        if (requestHeaders == null) {
+            return authHeaders;
+        }
+        HttpHeaders headers = new HttpHeaders();
+        if (authHeaders != null) {
+            headers.putAll(authHeaders);
+        }
+        headers.putAll(requestHeaders);
+        return headers;
     }
 
-    private String getDomain(String url) throws URISyntaxException {
-        URI uri = new URI(url);
-        return uri.getHost();
+    private <T> Set<T> nullSafe(Set<T> set) {
+        return set == null ? new LinkedHashSet<>() : set;
     }
 
-    private int getPort(String url) throws URISyntaxException {
-        URI uri = new URI(url);
-        return uri.getPort();
+    private List<String> nullSafe(List<String> list) {
+        return list == null ? new ArrayList<>() : list;
     }
 
     protected HttpHeaders createHeaders(final String userInfo) {
-        byte[] encodedAuth = Base64.encodeBase64(
-                userInfo.getBytes(StandardCharsets.US_ASCII));
-        String authHeader = "Basic " + new String(encodedAuth);
-
-        HttpHeaders headers = new HttpHeaders();
-        headers.set(HttpHeaders.AUTHORIZATION, authHeader);
-        return headers;
+        return TeamcityCredentials.basicAuthHeaders(userInfo);
     }
 
 
@@ -0,0 +1,167 @@
+package com.capitalone.dashboard.collector;
+
+import com.capitalone.dashboard.util.Supplier;
+import org.apache.http.HttpRequestInterceptor;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.protocol.HttpClientContext;
+import org.apache.http.concurrent.FutureCallback;
+import org.apache.http.config.Registry;
+import org.apache.http.config.RegistryBuilder;
+import org.apache.http.conn.routing.HttpRoute;
+import org.apache.http.conn.routing.HttpRoutePlanner;
+import org.apache.http.conn.ssl.NoopHostnameVerifier;
+import org.apache.http.impl.conn.DefaultRoutePlanner;
+import org.apache.http.impl.conn.DefaultSchemePortResolver;
+import org.apache.http.impl.nio.client.CloseableHttpAsyncClient;
+import org.apache.http.impl.nio.client.HttpAsyncClients;
+import org.apache.http.impl.nio.conn.PoolingNHttpClientConnectionManager;
+import org.apache.http.impl.nio.reactor.DefaultConnectingIOReactor;
+import org.apache.http.impl.nio.reactor.IOReactorConfig;
+import org.apache.http.nio.client.HttpAsyncClient;
+import org.apache.http.nio.conn.NoopIOSessionStrategy;
+import org.apache.http.nio.conn.SchemeIOSessionStrategy;
+import org.apache.http.nio.conn.ssl.SSLIOSessionStrategy;
+import org.apache.http.nio.protocol.HttpAsyncRequestProducer;
+import org.apache.http.nio.protocol.HttpAsyncResponseConsumer;
+import org.apache.http.nio.reactor.IOReactorException;
+import org.apache.http.protocol.HttpContext;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Supplier that returns a non-blocking HTTP client set up like the client of
+ * {@link RestOperationsSupplier}: the same timeouts, keep alive, per server connection limits and
+ * compression, with its responses counted in the same transfer stats. A handful of I/O threads
+ * serve all of its requests in flight.
+ *
+ * The client is created and started on first use, and closed with the collector.
+ */
+@Component
+public class HttpAsyncClientSupplier implements Supplier<HttpAsyncClient> {
+
+    @Autowired
+    TeamcitySettings settings;
+
+    @Autowired
+    RestOperationsSupplier restOperationsSupplier;
+
+    private CloseableHttpAsyncClient httpClient;
+
+    @Override
+    public synchronized HttpAsyncClient get() {
+        if (httpClient == null) {
+            httpClient = new DecodingHttpAsyncClient(build());
+            httpClient.start();
+        }
+        return httpClient;
+    }
+
+    @PreDestroy
+    public synchronized void close() throws IOException {
+        if (httpClient != null) {
+            httpClient.close();
+            httpClient = null;
+        }
+    }
+
+    private CloseableHttpAsyncClient build() {
+        IOReactorConfig ioReactorConfig = IOReactorConfig.custom()
+                .setConnectTimeout(settings.getConnectTimeout())
+                .setSoTimeout(settings.getReadTimeout())
+                .build();
+        Registry<SchemeIOSessionStrategy> sessionStrategies = RegistryBuilder.<SchemeIOSessionStrategy>create()
+                .register("http", NoopIOSessionStrategy.INSTANCE)
+                .register("https", new SSLIOSessionStrategy(RestOperationsSupplier.trustAllSslContext(), new NoopHostnameVerifier()))
+                .build();
+        PoolingNHttpClientConnectionManager connectionManager;
+        try {
+            connectionManager = new PoolingNHttpClientConnectionManager(
+                    new DefaultConnectingIOReactor(ioReactorConfig), sessionStrategies);
+        } catch (IOReactorException e) {
+            throw new IllegalStateException("Unable to create the I/O reactor of the async client", e);
+        }
+        connectionManager.setMaxTotal(settings.getMaxConnections());
+        connectionManager.setDefaultMaxPerRoute(settings.getMaxConnectionsPerRoute());
+        HttpRoutePlanner routePlanner = new DefaultRoutePlanner(DefaultSchemePortResolver.INSTANCE);
+        return HttpAsyncClients.custom()
+                .setConnectionManager(connectionManager)
+                .setDefaultRequestConfig(restOperationsSupplier.requestConfig())
+                .setKeepAliveStrategy(restOperationsSupplier::keepAliveDuration)
+                .addInterceptorLast((HttpRequestInterceptor) RestOperationsSupplier::acceptEncoding)
+                // the route is planned before a connection is leased for the request, so its server's limit applies to the lease
+                .setRoutePlanner((target, request, context) -> {
+                    HttpRoute route = routePlanner.determineRoute(target, request, context);
+                    restOperationsSupplier.limitRoute(connectionManager, route);
+                    // the builder has no eviction thread, idle connections are closed as requests are made instead
+                    connectionManager.closeExpiredConnections();
+                    connectionManager.closeIdleConnections(settings.getIdleConnectionTimeout(), TimeUnit.MILLISECONDS);
+                    return route;
+                })
+                .setThreadFactory(new CustomizableThreadFactory("teamcity-async-"))
+                .build();
+    }
+
+    /**
+     * Decodes and counts each response once its body has been read, before it is handed to the
+     * callback. A response interceptor only sees the head of a non-blocking response.
+     */
+    private class DecodingHttpAsyncClient extends CloseableHttpAsyncClient {
+        private final CloseableHttpAsyncClient delegate;
+
+        DecodingHttpAsyncClient(CloseableHttpAsyncClient delegate) {
+            this.delegate = delegate;
+        }
+
+        @Override
+        public boolean isRunning() {
+            return delegate.isRunning();
+        }
+
+        @Override
+        public void start() {
+            delegate.start();
+        }
+
+        @Override
+        public void close() throws IOException {
+            delegate.close();
+        }
+
+        @Override
+        public <T> Future<T> execute(HttpAsyncRequestProducer requestProducer, HttpAsyncResponseConsumer<T> responseConsumer,
+                                     HttpContext context, FutureCallback<T> callback) {
+            HttpContext localContext = context != null ? context : HttpClientContext.create();
+            return delegate.execute(requestProducer, responseConsumer, localContext, new FutureCallback<T>() {
+                @Override
+                public void completed(T result) {
+                    if (result instanceof HttpResponse) {
+                        restOperationsSupplier.decodeResponse((HttpResponse) result, localContext);
+                    }
+                    if (callback != null) {
+                        callback.completed(result);
+                    }
+                }
+
+                @Override
+                public void failed(Exception ex) {
+                    if (callback != null) {
+                        callback.failed(ex);
+                    }
+                }
+
+                @Override
+                public void cancelled() {
+                    if (callback != null) {
+                        callback.cancelled();
+                    }
+                }
+            });
+        }
+    }
+}
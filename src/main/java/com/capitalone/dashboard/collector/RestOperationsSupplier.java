@@ -1,11 +1,37 @@
 package com.capitalone.dashboard.collector;
 
 import com.capitalone.dashboard.util.Supplier;
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpHeaders;
+import org.apache.http.HttpHost;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpRequestInterceptor;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpResponseInterceptor;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.entity.DecompressingEntity;
+import org.apache.http.client.entity.DeflateDecompressingEntity;
+import org.apache.http.client.entity.GzipDecompressingEntity;
+import org.apache.http.client.protocol.HttpClientContext;
+import org.apache.http.config.Registry;
+import org.apache.http.config.RegistryBuilder;
+import org.apache.http.conn.routing.HttpRoute;
+import org.apache.http.conn.routing.RouteInfo;
+import org.apache.http.conn.socket.ConnectionSocketFactory;
+import org.apache.http.conn.socket.PlainConnectionSocketFactory;
 import org.apache.http.conn.ssl.NoopHostnameVerifier;
 import org.apache.http.conn.ssl.SSLConnectionSocketFactory;
+import org.apache.http.entity.HttpEntityWrapper;
 import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.DefaultConnectionKeepAliveStrategy;
 import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.pool.ConnPoolControl;
+import org.apache.http.protocol.HttpContext;
 import org.apache.http.ssl.TrustStrategy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.http.client.HttpComponentsClientHttpRequestFactory;
 import org.springframework.stereotype.Component;
@@ -13,10 +39,16 @@ import org.springframework.web.client.RestOperations;
 import org.springframework.web.client.RestTemplate;
 
 import javax.net.ssl.SSLContext;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.net.URISyntaxException;
 import java.security.KeyManagementException;
 import java.security.KeyStoreException;
 import java.security.NoSuchAlgorithmException;
 import java.security.cert.CertificateException;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
 
 
 /**
@@ -24,11 +56,55 @@ import java.security.cert.CertificateException;
  */
 @Component
 public class RestOperationsSupplier implements Supplier<RestOperations> {
+    private static final Logger LOG = LoggerFactory.getLogger(RestOperationsSupplier.class);
+
     @Autowired
     TeamcitySettings settings;
 
+    @Autowired
+    TeamcityTransferStats transferStats;
+
     @Override
     public RestOperations get() {
+        SSLContext sslContext = trustAllSslContext();
+        SSLConnectionSocketFactory csf = new SSLConnectionSocketFactory(sslContext, new NoopHostnameVerifier());
+        Registry<ConnectionSocketFactory> socketFactories = RegistryBuilder.<ConnectionSocketFactory>create()
+                .register("http", PlainConnectionSocketFactory.getSocketFactory())
+                .register("https", csf)
+                .build();
+        // one pool for the life of the collector, so connections are reused across runs
+        PoolingHttpClientConnectionManager connectionManager = new PoolingHttpClientConnectionManager(socketFactories);
+        connectionManager.setMaxTotal(settings.getMaxConnections());
+        connectionManager.setDefaultMaxPerRoute(settings.getMaxConnectionsPerRoute());
+        CloseableHttpClient httpClient = HttpClients.custom()
+                .setConnectionManager(connectionManager)
+                .setDefaultRequestConfig(requestConfig())
+                .setKeepAliveStrategy(this::keepAliveDuration)
+                // compression is negotiated here rather than by the builder, to count the bytes on both sides of it
+                .disableContentCompression()
+                .addInterceptorLast((HttpRequestInterceptor) RestOperationsSupplier::acceptEncoding)
+                // runs before a connection is leased for the request, so its server's limit applies to the lease
+                .addInterceptorFirst((HttpRequestInterceptor) (request, context) ->
+                        limitRoute(connectionManager, HttpClientContext.adapt(context).getHttpRoute()))
+                .addInterceptorFirst((HttpResponseInterceptor) this::decodeResponse)
+                .evictExpiredConnections()
+                .evictIdleConnections(settings.getIdleConnectionTimeout(), TimeUnit.MILLISECONDS)
+                .build();
+        HttpComponentsClientHttpRequestFactory requestFactory = new HttpComponentsClientHttpRequestFactory();
+        requestFactory.setHttpClient(httpClient);
+        RestTemplate restTemplate = new RestTemplate(requestFactory);
+        return restTemplate;
+    }
+
+    RequestConfig requestConfig() {
+        return RequestConfig.custom()
+                .setConnectTimeout(settings.getConnectTimeout())
+                .setSocketTimeout(settings.getReadTimeout())
+                .setConnectionRequestTimeout(settings.getConnectionRequestTimeout())
+                .build();
+    }
+
+    static SSLContext trustAllSslContext() {
         TrustStrategy acceptingTrustStrategy = new TrustStrategy() {
             @Override
             public boolean isTrusted(java.security.cert.X509Certificate[] x509Certificates, String s) throws CertificateException {
@@ -46,11 +122,97 @@ public class RestOperationsSupplier implements Supplier<RestOperations> {
         } catch (KeyStoreException e) {
             e.printStackTrace();
         }
-        SSLConnectionSocketFactory csf = new SSLConnectionSocketFactory(sslContext, new NoopHostnameVerifier());
-        CloseableHttpClient httpClient = HttpClients.custom().setSSLSocketFactory(csf).build();
-        HttpComponentsClientHttpRequestFactory requestFactory = new HttpComponentsClientHttpRequestFactory();
-        requestFactory.setHttpClient(httpClient);
-        RestTemplate restTemplate = new RestTemplate(requestFactory);
-        return restTemplate;
+        return sslContext;
+    }
+
+    // keep a connection alive as long as the server allows, or for the configured time if it does not say
+    long keepAliveDuration(HttpResponse response, HttpContext context) {
+        long duration = DefaultConnectionKeepAliveStrategy.INSTANCE.getKeepAliveDuration(response, context);
+        return duration > 0 ? duration : settings.getKeepAlive();
+    }
+
+    static void acceptEncoding(HttpRequest request, HttpContext context) {
+        if (!request.containsHeader(HttpHeaders.ACCEPT_ENCODING)) {
+            request.addHeader(HttpHeaders.ACCEPT_ENCODING, "gzip,deflate");
+        }
+    }
+
+    /**
+     * Decompresses a gzip or deflate response as it is read, counting the bytes before and after.
+     */
+    void decodeResponse(HttpResponse response, HttpContext context) {
+        HttpEntity entity = response.getEntity();
+        HttpHost target = HttpClientContext.adapt(context).getTargetHost();
+        if (entity == null || target == null) {
+            return;
+        }
+        String host = target.toHostString();
+        HttpEntity decoded = new HttpEntityWrapper(entity) {
+            @Override
+            public InputStream getContent() throws IOException {
+                return transferStats.count(super.getContent(), host, false);
+            }
+        };
+        Header contentEncoding = entity.getContentEncoding();
+        if (contentEncoding != null) {
+            String codec = contentEncoding.getValue().trim().toLowerCase(Locale.ROOT);
+            if ("gzip".equals(codec) || "x-gzip".equals(codec)) {
+                decoded = new GzipDecompressingEntity(decoded);
+            } else if ("deflate".equals(codec)) {
+                decoded = new DeflateDecompressingEntity(decoded);
+            }
+            if (decoded instanceof DecompressingEntity) {
+                response.removeHeaders(HttpHeaders.CONTENT_LENGTH);
+                response.removeHeaders(HttpHeaders.CONTENT_ENCODING);
+                response.removeHeaders("Content-MD5");
+            }
+        }
+        response.setEntity(new HttpEntityWrapper(decoded) {
+            @Override
+            public InputStream getContent() throws IOException {
+                return transferStats.count(super.getContent(), host, true);
+            }
+        });
+    }
+
+    /**
+     * Sets the connection limit of the route of a request from the current settings, so servers
+     * added on the admin page after the pool was built, and changed limits, apply from their next request.
+     */
+    void limitRoute(ConnPoolControl<HttpRoute> connectionManager, RouteInfo routeInfo) {
+        if (!(routeInfo instanceof HttpRoute)) {
+            return;
+        }
+        HttpRoute route = (HttpRoute) routeInfo;
+        int maxConnections = settings.getMaxConnectionsPerRoute();
+        for (TeamcitySettings.ServerLimit serverLimit : settings.getServerLimits()) {
+            if (serverLimit != null && serverLimit.getMaxConnections() != null
+                    && route.getTargetHost().equals(targetHost(serverLimit.getUrl()))) {
+                maxConnections = serverLimit.getMaxConnections();
+                break;
+            }
+        }
+        if (connectionManager.getMaxPerRoute(route) != maxConnections) {
+            connectionManager.setMaxPerRoute(route, maxConnections);
+        }
+    }
+
+    // the host of a server as it appears in a route, with the default port of its scheme
+    static HttpHost targetHost(String server) {
+        if (server == null) {
+            return null;
+        }
+        try {
+            URI uri = new URI(server);
+            if (uri.getHost() == null) {
+                return null;
+            }
+            boolean secure = "https".equalsIgnoreCase(uri.getScheme());
+            int port = uri.getPort() > 0 ? uri.getPort() : (secure ? 443 : 80);
+            return new HttpHost(uri.getHost(), port, secure ? "https" : "http");
+        } catch (URISyntaxException e) {
+            LOG.debug("Unable to read the host of server " + server, e);
+            return null;
+        }
     }
 }
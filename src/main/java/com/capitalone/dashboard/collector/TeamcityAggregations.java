@@ -0,0 +1,35 @@
+package com.capitalone.dashboard.collector;
+
+import com.mongodb.AggregationOptions;
+import com.mongodb.Cursor;
+import com.mongodb.DBObject;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.aggregation.Aggregation;
+
+import java.util.List;
+
+/**
+ * Runs aggregations through a cursor. {@link MongoTemplate#aggregate} reads the results inline
+ * from the command reply, which MongoDB 3.6 and later reject and which can not exceed 16MB.
+ */
+final class TeamcityAggregations {
+
+    private TeamcityAggregations() {
+    }
+
+    /**
+     * @param mongoTemplate  the template of the database
+     * @param collectionName the collection to aggregate
+     * @param aggregation    the pipeline, its fields are used as they are named
+     * @return the cursor over the results, to be closed once read
+     */
+    @SuppressWarnings("unchecked")
+    static Cursor aggregate(MongoTemplate mongoTemplate, String collectionName, Aggregation aggregation) {
+        DBObject command = aggregation.toDbObject(collectionName, Aggregation.DEFAULT_CONTEXT);
+        return mongoTemplate.getCollection(collectionName).aggregate((List<DBObject>) command.get("pipeline"),
+                AggregationOptions.builder()
+                        .outputMode(AggregationOptions.OutputMode.CURSOR)
+                        .allowDiskUse(true)
+                        .build());
+    }
+}
@@ -0,0 +1,179 @@
+package com.capitalone.dashboard.collector;
+
+import com.capitalone.dashboard.model.Build;
+import com.capitalone.dashboard.model.TeamcityProject;
+import com.capitalone.dashboard.repository.TeamcityJobRepository;
+import com.mongodb.BasicDBObject;
+import com.mongodb.BulkWriteOperation;
+import com.mongodb.Cursor;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.data.domain.Sort;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.aggregation.Aggregation;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.stereotype.Component;
+import org.springframework.web.client.RestClientException;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import static org.springframework.data.mongodb.core.aggregation.Aggregation.group;
+import static org.springframework.data.mongodb.core.aggregation.Aggregation.match;
+import static org.springframework.data.mongodb.core.aggregation.Aggregation.newAggregation;
+import static org.springframework.data.mongodb.core.aggregation.Aggregation.sort;
+
+/**
+ * One-time migration of the builds stored for each {@link TeamcityProject} to the canonical
+ * build key (the build url, which holds the TeamCity build id).
+ *
+ * Builds were looked up by a key that did not match the one they were saved under, so every
+ * run saved the whole history again. This removes those duplicates, keeping the first saved
+ * copy of each build. Builds were also saved with their TeamCity id as their number, which is
+ * replaced by the build number TeamCity shows, as new builds have it. The job is then marked as
+ * migrated.
+ *
+ * Jobs are migrated one at a time. A job that fails is left unmarked and migrated again on the
+ * next run, it does not stop the others or the collection.
+ */
+@Component
+public class TeamcityBuildKeyMigration {
+    private static final Logger LOG = LoggerFactory.getLogger(TeamcityBuildKeyMigration.class);
+
+    static final String BUILD_URL_KEY = "buildUrl";
+    private static final int WRITE_BATCH_SIZE = 1000;
+
+    private final MongoTemplate mongoTemplate;
+    private final TeamcityJobRepository teamcityJobRepository;
+    private final TeamcityClient teamcityClient;
+
+    @Autowired
+    public TeamcityBuildKeyMigration(MongoTemplate mongoTemplate, TeamcityJobRepository teamcityJobRepository,
+                                     TeamcityClient teamcityClient) {
+        this.mongoTemplate = mongoTemplate;
+        this.teamcityJobRepository = teamcityJobRepository;
+        this.teamcityClient = teamcityClient;
+    }
+
+    /**
+     * Migrates the builds of every job of a build server that has not been migrated yet. Once
+     * the server fails to answer, its remaining jobs are left for the next run.
+     *
+     * @param jobs the collector items of one build server
+     */
+    public void migrate(List<TeamcityProject> jobs) {
+        for (TeamcityProject job : jobs) {
+            if (BUILD_URL_KEY.equals(job.getBuildKey())) {
+                continue;
+            }
+            try {
+                migrate(job);
+            } catch (RestClientException rce) {
+                LOG.error("Could not migrate the builds of " + job.getJobName() + ", migrating the jobs of "
+                        + job.getInstanceUrl() + " on the next run: " + rce.getMessage());
+                return;
+            } catch (RuntimeException re) {
+                LOG.error("Could not migrate the builds of " + job.getJobName() + " on " + job.getInstanceUrl(), re);
+            }
+        }
+    }
+
+    private void migrate(TeamcityProject job) {
+        int removed = removeDuplicates(job);
+        int renumbered = renumber(job);
+        job.setBuildKey(BUILD_URL_KEY);
+        teamcityJobRepository.save(job);
+        LOG.info("Migrated builds of " + job.getJobName() + ", removed " + removed + " duplicate builds, renumbered "
+                + renumbered + " builds");
+    }
+
+    /**
+     * Removes the copies of each build of the job but the first saved.
+     *
+     * @return the number of builds removed
+     */
+    private int removeDuplicates(TeamcityProject job) {
+        Aggregation aggregation = newAggregation(
+                match(Criteria.where("collectorItemId").is(job.getId())),
+                sort(Sort.Direction.ASC, "timestamp"),
+                group("buildUrl").push("_id").as("ids").count().as("count"),
+                match(Criteria.where("count").gt(1)));
+
+        int removed = 0;
+        List<Object> duplicates = new ArrayList<>();
+        try (Cursor builds = TeamcityAggregations.aggregate(mongoTemplate,
+                mongoTemplate.getCollectionName(Build.class), aggregation)) {
+            while (builds.hasNext()) {
+                List<?> ids = (List<?>) builds.next().get("ids");
+                if (ids != null && ids.size() > 1) {
+                    duplicates.addAll(ids.subList(1, ids.size()));
+                }
+                if (duplicates.size() >= WRITE_BATCH_SIZE || (!builds.hasNext() && !duplicates.isEmpty())) {
+                    mongoTemplate.remove(new Query(Criteria.where("_id").in(duplicates)), Build.class);
+                    removed += duplicates.size();
+                    duplicates.clear();
+                }
+            }
+        }
+        return removed;
+    }
+
+    /**
+     * Replaces the number of the job's builds that were saved with their TeamCity id as their
+     * number by the number TeamCity shows. The build list of the job is only fetched if it has
+     * such builds.
+     *
+     * @return the number of builds renumbered
+     */
+    private int renumber(TeamcityProject job) {
+        Query query = new Query(Criteria.where("collectorItemId").is(job.getId()));
+        query.fields().include("buildUrl").include("number");
+        List<Build> numberedById = new ArrayList<>();
+        for (Build build : mongoTemplate.find(query, Build.class)) {
+            if (isNumberedById(build)) {
+                numberedById.add(build);
+            }
+        }
+        if (numberedById.isEmpty()) {
+            return 0;
+        }
+
+        Map<String, String> numbers = teamcityClient.getBuildNumbers(job);
+        int renumbered = 0;
+        BulkWriteOperation bulk = null;
+        for (Build build : numberedById) {
+            String number = numbers.get(build.getBuildUrl());
+            if (number == null || number.equals(build.getNumber())) {
+                continue;
+            }
+            if (bulk == null) {
+                bulk = mongoTemplate.getCollection(mongoTemplate.getCollectionName(Build.class))
+                        .initializeUnorderedBulkOperation();
+            }
+            bulk.find(new BasicDBObject("_id", build.getId()))
+                    .updateOne(new BasicDBObject("$set", new BasicDBObject("number", number)));
+            if (++renumbered % WRITE_BATCH_SIZE == 0) {
+                bulk.execute();
+                bulk = null;
+            }
+        }
+        if (bulk != null) {
+            bulk.execute();
+        }
+        return renumbered;
+    }
+
+    private static boolean isNumberedById(Build build) {
+        if (build.getBuildUrl() == null || build.getNumber() == null) {
+            return false;
+        }
+        try {
+            return build.getNumber().equals(String.valueOf(DefaultTeamcityClient.buildId(build.getBuildUrl())));
+        } catch (NumberFormatException | IndexOutOfBoundsException e) {
+            return false;
+        }
+    }
+}
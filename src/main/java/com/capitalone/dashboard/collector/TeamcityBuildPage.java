@@ -0,0 +1,79 @@
+package com.capitalone.dashboard.collector;
+
+import com.capitalone.dashboard.model.BaseModel;
+import com.capitalone.dashboard.model.Build;
+import com.capitalone.dashboard.model.SCM;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+/**
+ * One page of the TeamCity build list, with the link to the page after it.
+ */
+final class TeamcityBuildPage {
+
+    static final TeamcityBuildPage EMPTY = new TeamcityBuildPage(Collections.emptySet(), null, 0);
+
+    private final Set<BaseModel> builds;
+    private final String nextHref;
+    private final long bytes;
+
+    /**
+     * @param builds   the builds of the page, in response order
+     * @param nextHref the server relative link to the next page, or null on the last page
+     * @param bytes    size of the response body
+     */
+    TeamcityBuildPage(Set<BaseModel> builds, String nextHref, long bytes) {
+        this.builds = builds;
+        this.nextHref = nextHref;
+        this.bytes = bytes;
+    }
+
+    Set<BaseModel> getBuilds() {
+        return builds;
+    }
+
+    String getNextHref() {
+        return nextHref;
+    }
+
+    long getBytes() {
+        return bytes;
+    }
+
+    /**
+     * @return a page with copies of the builds of this page, for the response cache
+     */
+    TeamcityBuildPage copy() {
+        Set<BaseModel> copies = new LinkedHashSet<>();
+        for (BaseModel build : builds) {
+            copies.add(copyOf((Build) build));
+        }
+        return new TeamcityBuildPage(copies, nextHref, bytes);
+    }
+
+    /**
+     * Copies a build that has not been saved yet. Its repos are immutable and shared.
+     */
+    static Build copyOf(Build build) {
+        Build copy = new Build();
+        copy.setCollectorItemId(build.getCollectorItemId());
+        copy.setTimestamp(build.getTimestamp());
+        copy.setNumber(build.getNumber());
+        copy.setBuildUrl(build.getBuildUrl());
+        copy.setStartTime(build.getStartTime());
+        copy.setEndTime(build.getEndTime());
+        copy.setDuration(build.getDuration());
+        copy.setBuildStatus(build.getBuildStatus());
+        copy.setStartedBy(build.getStartedBy());
+        copy.setLog(build.getLog());
+        copy.setCodeRepos(new ArrayList<>(build.getCodeRepos()));
+        for (SCM scm : build.getSourceChangeSet()) {
+            copy.addSourceChangeSet(new SCM(scm));
+        }
+        copy.setStages(new ArrayList<>(build.getStages()));
+        return copy;
+    }
+}
@@ -0,0 +1,119 @@
+package com.capitalone.dashboard.collector;
+
+import com.capitalone.dashboard.model.Build;
+import com.mongodb.BasicDBObject;
+import com.mongodb.BulkWriteError;
+import com.mongodb.BulkWriteException;
+import com.mongodb.BulkWriteOperation;
+import com.mongodb.DBObject;
+import org.bson.types.ObjectId;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.ApplicationEventPublisher;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.mapping.event.AfterSaveEvent;
+import org.springframework.data.mongodb.core.mapping.event.BeforeConvertEvent;
+import org.springframework.data.mongodb.core.mapping.event.BeforeSaveEvent;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Bulk reads and writes of the builds stored for TeamCity jobs, so a job's builds are checked
+ * and saved in a few round trips instead of one per build.
+ */
+@Component
+public class TeamcityBuildStore {
+
+    // keeps each $in list, and the query document holding it, small
+    private static final int QUERY_BATCH_SIZE = 1000;
+    private static final int DUPLICATE_KEY = 11000;
+
+    private final MongoTemplate mongoTemplate;
+    private final ApplicationEventPublisher eventPublisher;
+
+    @Autowired
+    public TeamcityBuildStore(MongoTemplate mongoTemplate, ApplicationEventPublisher eventPublisher) {
+        this.mongoTemplate = mongoTemplate;
+        this.eventPublisher = eventPublisher;
+    }
+
+    /**
+     * Finds which of the given builds are already stored for a collector item.
+     *
+     * @param collectorItemId the id of the job
+     * @param buildUrls       canonical build urls, which hold the TeamCity build ids, to look for
+     * @return the build urls that are stored
+     */
+    public Set<String> findExistingBuildUrls(ObjectId collectorItemId, Collection<String> buildUrls) {
+        Set<String> existing = new HashSet<>();
+        List<String> keys = new ArrayList<>(buildUrls);
+        for (int i = 0; i < keys.size(); i += QUERY_BATCH_SIZE) {
+            Query query = new Query(Criteria.where("collectorItemId").is(collectorItemId)
+                    .and("buildUrl").in(keys.subList(i, Math.min(i + QUERY_BATCH_SIZE, keys.size()))));
+            query.fields().include("buildUrl");
+            for (Build build : mongoTemplate.find(query, Build.class)) {
+                existing.add(build.getBuildUrl());
+            }
+        }
+        return existing;
+    }
+
+    /**
+     * Inserts new builds in one unordered batch, so a build that fails does not keep the rest of
+     * the batch from being written. A build that is already stored fails with a duplicate key
+     * error, which is ignored. Save events are published for each build, in list order, as they
+     * are for a repository save; builds that were not written get no after save event.
+     *
+     * @param builds the builds to insert
+     * @throws BulkWriteException if a build failed for another reason than being stored already,
+     *                            once the after save events of the written builds are published
+     */
+    public void insert(List<Build> builds) {
+        if (builds.isEmpty()) {
+            return;
+        }
+        String collection = mongoTemplate.getCollectionName(Build.class);
+        BulkWriteOperation bulk = mongoTemplate.getCollection(collection).initializeUnorderedBulkOperation();
+        List<DBObject> documents = new ArrayList<>(builds.size());
+        for (Build build : builds) {
+            if (build.getId() == null) {
+                build.setId(ObjectId.get());
+            }
+            eventPublisher.publishEvent(new BeforeConvertEvent<>(build, collection));
+            DBObject document = new BasicDBObject();
+            mongoTemplate.getConverter().write(build, document);
+            eventPublisher.publishEvent(new BeforeSaveEvent<>(build, document, collection));
+            bulk.insert(document);
+            documents.add(document);
+        }
+        Set<Integer> failed = new HashSet<>();
+        BulkWriteException failure = null;
+        try {
+            bulk.execute();
+        } catch (BulkWriteException bwe) {
+            for (BulkWriteError error : bwe.getWriteErrors()) {
+                failed.add(error.getIndex());
+                if (error.getCode() != DUPLICATE_KEY) {
+                    failure = bwe;
+                }
+            }
+            if (bwe.getWriteConcernError() != null) {
+                failure = bwe;
+            }
+        }
+        for (int i = 0; i < builds.size(); i++) {
+            if (!failed.contains(i)) {
+                eventPublisher.publishEvent(new AfterSaveEvent<>(builds.get(i), documents.get(i), collection));
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+}
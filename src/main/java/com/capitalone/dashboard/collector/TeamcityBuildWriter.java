@@ -0,0 +1,130 @@
+package com.capitalone.dashboard.collector;
+
+import com.capitalone.dashboard.model.Build;
+import com.capitalone.dashboard.model.TeamcityProject;
+import com.capitalone.dashboard.repository.TeamcityJobRepository;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Collects new builds and writes them in batches, flushing when the batch is full or the
+ * flush interval has passed. The jobs of a batch are saved once, after its builds, so a job's
+ * last build id never points past a build that was not written.
+ *
+ * Builds are inserted in the order they were added, which keeps each job's builds in build
+ * id order for the save listeners. Not thread safe: each lane of the persist stage has its own
+ * writer, used and flushed only on the lane's thread, so the jobs of a lane are changed and
+ * saved by that thread alone and the lanes never wait on each other's writes.
+ *
+ * A batch that fails to be written is dropped, and its jobs fail for the rest of the run: their
+ * later builds and changes are ignored and they are not saved. Their cursor stays before the
+ * builds that were not written, which are fetched again on the next run.
+ */
+class TeamcityBuildWriter {
+
+    private final TeamcityBuildStore buildStore;
+    private final TeamcityJobRepository teamcityJobRepository;
+    private final int batchSize;
+    private final long flushInterval;
+
+    private final List<Build> builds = new ArrayList<>();
+    private final Set<TeamcityProject> builtJobs = new LinkedHashSet<>();
+    private final Set<TeamcityProject> jobs = new LinkedHashSet<>();
+    private final Set<TeamcityProject> failedJobs = new HashSet<>();
+    private long lastFlush = System.currentTimeMillis();
+    private int count;
+
+    TeamcityBuildWriter(TeamcityBuildStore buildStore, TeamcityJobRepository teamcityJobRepository,
+                        int batchSize, long flushInterval) {
+        this.buildStore = buildStore;
+        this.teamcityJobRepository = teamcityJobRepository;
+        this.batchSize = Math.max(1, batchSize);
+        this.flushInterval = flushInterval;
+    }
+
+    /**
+     * Adds a new build of a job, flushing if the batch is full or due.
+     */
+    void add(TeamcityProject job, Build build) {
+        if (failedJobs.contains(job)) {
+            return;
+        }
+        build.setCollectorItemId(job.getId());
+        builds.add(build);
+        builtJobs.add(job);
+        jobs.add(job);
+        if (builds.size() >= batchSize || System.currentTimeMillis() - lastFlush >= flushInterval) {
+            flush();
+        }
+    }
+
+    /**
+     * Moves the finish time cursor of a job past its builds that were added. The job is saved
+     * with the next batch, after those builds.
+     */
+    void advance(TeamcityProject job, long lastFinishTime) {
+        if (!failedJobs.contains(job) && lastFinishTime > job.getLastFinishTime()) {
+            job.setLastFinishTime(lastFinishTime);
+            jobs.add(job);
+        }
+    }
+
+    /**
+     * Marks a job as updated now, it is saved with the next batch.
+     */
+    void update(TeamcityProject job) {
+        if (failedJobs.contains(job)) {
+            return;
+        }
+        job.setLastUpdated(System.currentTimeMillis());
+        jobs.add(job);
+    }
+
+    /**
+     * Writes the pending builds, then saves their jobs with the time they were updated. Nothing
+     * stays pending once it returns or throws, so a failed batch is never written again.
+     *
+     * @throws RuntimeException if the builds or the jobs could not be written
+     */
+    void flush() {
+        lastFlush = System.currentTimeMillis();
+        RuntimeException failure = null;
+        try {
+            if (!builds.isEmpty()) {
+                try {
+                    buildStore.insert(builds);
+                    count += builds.size();
+                    for (TeamcityProject job : builtJobs) {
+                        job.setLastUpdated(lastFlush);
+                    }
+                } catch (RuntimeException re) {
+                    // the other jobs are still saved
+                    failedJobs.addAll(builtJobs);
+                    jobs.removeAll(builtJobs);
+                    failure = re;
+                }
+            }
+            if (!jobs.isEmpty()) {
+                teamcityJobRepository.save(new ArrayList<>(jobs));
+            }
+        } finally {
+            builds.clear();
+            builtJobs.clear();
+            jobs.clear();
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    /**
+     * @return the number of builds written
+     */
+    int getCount() {
+        return count;
+    }
+}
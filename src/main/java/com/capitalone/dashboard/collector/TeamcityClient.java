@@ -4,8 +4,11 @@ import com.capitalone.dashboard.model.BaseModel;
 import com.capitalone.dashboard.model.Build;
 import com.capitalone.dashboard.model.TeamcityProject;
 
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.BiConsumer;
 
 /**
  * Client for fetching job and build information from Hudson
@@ -15,14 +18,24 @@ public interface TeamcityClient {
     enum jobData {BUILD, CONFIG};
 
     /**
-     * Finds all of the configured jobs for a given instance and returns the set of
-     * builds for each job. At a minimum, the number and url of each Build will be
-     * populated.
+     * Finds the configured jobs of a given instance without fetching any of their builds.
      *
      * @param instanceUrl the URL for the Teamcity instance
-     * @return a summary of every build for each job on the instance
+     * @return the jobs on the instance
      */
-    Map<TeamcityProject, Map<TeamcityClient.jobData, Set<BaseModel>>> getInstanceProjects(String instanceUrl);
+    Set<TeamcityProject> discoverProjects(String instanceUrl);
+
+    /**
+     * Fetches the builds of each of the given jobs and hands them to the visitor one job at a
+     * time, in the order of the jobs, instead of returning them all at once. A job's data is
+     * only held until the visitor returns.
+     *
+     * @param projects jobs of a single Teamcity instance
+     * @param visitor  called with each job and a summary of its new builds
+     * @throws TeamcityPartialResultException after visiting the other jobs, if some jobs could not be fetched
+     */
+    void visitProjectData(List<TeamcityProject> projects,
+                          BiConsumer<TeamcityProject, Map<TeamcityClient.jobData, Set<BaseModel>>> visitor);
 
     /**
      * Fetch full populated build information for a build.
@@ -32,4 +45,23 @@ public interface TeamcityClient {
      * @return a Build instance or null
      */
     Build getBuildDetails(String buildUrl, String instanceUrl);
+
+    /**
+     * Same as {@link #getBuildDetails(String, String)}, but returns at once. No thread waits for
+     * the request, it is sent on the non-blocking client when the request governor allows it.
+     *
+     * @param buildUrl the url of the build
+     * @param instanceUrl
+     * @return completed with a Build instance or null
+     */
+    CompletableFuture<Build> getBuildDetailsAsync(String buildUrl, String instanceUrl);
+
+    /**
+     * Fetches the number of every build of a job, from its whole build list.
+     *
+     * @param project the job
+     * @return the number of each build, by build url
+     * @throws org.springframework.web.client.RestClientException if the build list could not be read
+     */
+    Map<String, String> getBuildNumbers(TeamcityProject project);
 }
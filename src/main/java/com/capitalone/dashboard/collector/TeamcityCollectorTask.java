@@ -10,11 +10,34 @@ import org.apache.commons.logging.LogFactory;
 import org.bson.types.ObjectId;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.scheduling.TaskScheduler;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
 import org.springframework.stereotype.Component;
 import org.springframework.util.CollectionUtils;
 import org.springframework.web.client.RestClientException;
 
+import javax.annotation.PreDestroy;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
 
 
 /**
@@ -24,33 +47,60 @@ import java.util.*;
 public class TeamcityCollectorTask extends CollectorTask<TeamcityCollector> {
     @SuppressWarnings("PMD.UnusedPrivateField")
     private static final Log LOG = LogFactory.getLog(TeamcityCollectorTask.class);
+    // logs the stats of the stages of every server while they run
+    private static final ScheduledExecutorService STAGE_STATS = Executors.newSingleThreadScheduledExecutor(statsThreads());
 
     private final TeamcityCollectorRepository teamcityCollectorRepository;
     private final TeamcityJobRepository teamcityJobRepository;
-    private final BuildRepository buildRepository;
     private final CollItemConfigHistoryRepository configRepository;
     private final TeamcityClient teamcityClient;
+    private final TeamcityCredentials credentials;
+    private final TeamcityRequestGovernor governor;
+    private final TeamcityBuildStore buildStore;
+    private final TeamcityDashboardItems dashboardItems;
+    private final TeamcityDashboardWatcher dashboardWatcher;
     private final TeamcitySettings teamcitySettings;
-    private final ComponentRepository dbComponentRepository;
 	private final ConfigurationRepository configurationRepository;
+    private final TeamcityBuildKeyMigration buildKeyMigration;
+    private final TeamcityTransferStats transferStats;
+    private final TeamcityResponseCache responseCache;
+    private final Map<String, ExecutorService> instanceExecutors = new ConcurrentHashMap<>();
+    // the collector of the latest run, for dashboard changes between runs
+    private volatile TeamcityCollector watchedCollector;
+    // held by a collection run, or while dashboard changes are applied, so the two never save the same jobs at once
+    private final ReentrantLock collectLock = new ReentrantLock();
+    private final AtomicBoolean dashboardChanged = new AtomicBoolean();
 
     @Autowired
     public TeamcityCollectorTask(TaskScheduler taskScheduler,
                                  TeamcityCollectorRepository teamcityCollectorRepository,
                                  TeamcityJobRepository teamcityJobRepository,
-                                 BuildRepository buildRepository, CollItemConfigHistoryRepository configRepository, TeamcityClient teamcityClient,
+                                 CollItemConfigHistoryRepository configRepository, TeamcityClient teamcityClient,
                                  TeamcitySettings teamcitySettings,
-                                 ComponentRepository dbComponentRepository,
-                                 ConfigurationRepository configurationRepository) {
+                                 ConfigurationRepository configurationRepository,
+                                 TeamcityBuildKeyMigration buildKeyMigration,
+                                 TeamcityTransferStats transferStats,
+                                 TeamcityResponseCache responseCache,
+                                 TeamcityCredentials credentials,
+                                 TeamcityRequestGovernor governor,
+                                 TeamcityBuildStore buildStore,
+                                 TeamcityDashboardItems dashboardItems,
+                                 TeamcityDashboardWatcher dashboardWatcher) {
         super(taskScheduler, "Teamcity");
         this.teamcityCollectorRepository = teamcityCollectorRepository;
         this.teamcityJobRepository = teamcityJobRepository;
-        this.buildRepository = buildRepository;
         this.configRepository = configRepository;
         this.teamcityClient = teamcityClient;
         this.teamcitySettings = teamcitySettings;
-        this.dbComponentRepository = dbComponentRepository;
 		this.configurationRepository = configurationRepository;
+        this.buildKeyMigration = buildKeyMigration;
+        this.transferStats = transferStats;
+        this.responseCache = responseCache;
+        this.credentials = credentials;
+        this.governor = governor;
+        this.buildStore = buildStore;
+        this.dashboardItems = dashboardItems;
+        this.dashboardWatcher = dashboardWatcher;
     }
 
     @Override
@@ -71,6 +121,9 @@ public class TeamcityCollectorTask extends CollectorTask<TeamcityCollector> {
 				teamcitySettings.getApiKeys().add(TeamcityServer.get("password"));
 			}
 		}
+        // auth headers and server limiters are only rebuilt when the servers, credentials or limits changed
+        credentials.refresh();
+        governor.refresh();
         return TeamcityCollector.prototype(teamcitySettings.getServers(), teamcitySettings.getNiceNames(),
                 teamcitySettings.getEnvironments());
     }
@@ -85,8 +138,24 @@ public class TeamcityCollectorTask extends CollectorTask<TeamcityCollector> {
         return teamcitySettings.getCron();
     }
 
+    /**
+     * Collects every build server. Dashboard changes that arrive during the run are applied
+     * once it has finished. A server that times out is interrupted, and the run only ends once
+     * its collection has stopped, so it never overlaps the clean up, dashboard changes or the
+     * next run.
+     */
     @Override
     public void collect(TeamcityCollector collector) {
+        collectLock.lock();
+        try {
+            collectServers(collector);
+        } finally {
+            collectLock.unlock();
+        }
+        applyDashboardChanges();
+    }
+
+    private void collectServers(TeamcityCollector collector) {
         long start = System.currentTimeMillis();
         Set<ObjectId> udId = new HashSet<>();
         udId.add(collector.getId());
@@ -96,52 +165,318 @@ public class TeamcityCollectorTask extends CollectorTask<TeamcityCollector> {
         activeServers.addAll(collector.getBuildServers());
 
         clean(collector, existingJobs);
+        TeamcityJobIndex existingJobIndex = new TeamcityJobIndex(existingJobs);
+        Map<String, List<TeamcityProject>> jobsByInstance = new HashMap<>();
+        for (TeamcityProject job : existingJobs) {
+            if (!job.isPushed()) {
+                jobsByInstance.computeIfAbsent(job.getInstanceUrl(), url -> new ArrayList<>()).add(job);
+            }
+        }
+        if (teamcitySettings.isWatchDashboards()) {
+            watchedCollector = collector;
+            dashboardWatcher.start(this::onDashboardChange);
+        }
 
+        // each instance is collected on its own executor so a slow server only holds up itself
+        Map<String, Future<Set<TeamcityProject>>> instanceCollections = new LinkedHashMap<>();
+        Map<String, CountDownLatch> instancesStopped = new HashMap<>();
         for (String instanceUrl : collector.getBuildServers()) {
-            logBanner(instanceUrl);
+            FutureTask<Set<TeamcityProject>> instanceCollection = new FutureTask<>(() -> collectInstance(collector,
+                    instanceUrl, existingJobIndex, jobsByInstance.getOrDefault(instanceUrl, Collections.emptyList()), start));
+            // counted down once the thread is done with it, even if it was cancelled before it started
+            CountDownLatch stopped = new CountDownLatch(1);
             try {
-                Map<TeamcityProject, Map<TeamcityClient.jobData, Set<BaseModel>>> dataByJob = teamcityClient
-                        .getInstanceProjects(instanceUrl);
-                log("Fetched jobs", start);
-                activeJobs.addAll(dataByJob.keySet());
-                addNewJobs(dataByJob.keySet(), existingJobs, collector);
-                addNewBuilds(enabledJobs(collector, instanceUrl), dataByJob);
-                addNewConfigs(enabledJobs(collector, instanceUrl), dataByJob);
-                log("Finished", start);
-            } catch (RestClientException rce) {
+                instanceExecutor(instanceUrl).execute(() -> {
+                    try {
+                        instanceCollection.run();
+                    } finally {
+                        stopped.countDown();
+                    }
+                });
+                instanceCollections.put(instanceUrl, instanceCollection);
+                instancesStopped.put(instanceUrl, stopped);
+            } catch (RejectedExecutionException ree) {
+                activeServers.remove(instanceUrl);
+                log("Previous collection still running for: " + instanceUrl, start);
+            }
+        }
+
+        long deadline = start + teamcitySettings.getInstanceTimeout();
+        for (Map.Entry<String, Future<Set<TeamcityProject>>> entry : instanceCollections.entrySet()) {
+            String instanceUrl = entry.getKey();
+            Future<Set<TeamcityProject>> instanceCollection = entry.getValue();
+            try {
+                activeJobs.addAll(instanceCollection.get(Math.max(0, deadline - System.currentTimeMillis()),
+                        TimeUnit.MILLISECONDS));
+            } catch (ExecutionException ee) {
                 activeServers.remove(instanceUrl); // since it was a rest exception, we will not delete this job  and wait for
                 // rest exceptions to clear up at a later run.
-                log("Error getting jobs for: " + instanceUrl, start);
+                if (ee.getCause() instanceof RestClientException) {
+                    log("Error getting jobs for: " + instanceUrl, start);
+                } else {
+                    LOG.error("Error collecting " + instanceUrl, ee.getCause());
+                }
+            } catch (TimeoutException te) {
+                instanceCollection.cancel(true);
+                activeServers.remove(instanceUrl);
+                log("Timed out collecting: " + instanceUrl, start);
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+                instanceCollection.cancel(true);
+                activeServers.remove(instanceUrl);
             }
         }
         // Delete jobs that will be no longer collected because servers have moved etc.
         deleteUnwantedJobs(activeJobs, existingJobs, activeServers, collector);
+        LOG.info("Response cache: " + responseCache.getHits() + " hits, " + responseCache.getMisses() + " misses");
+        // an interrupt does not end a read or a write in progress, wait for the cancelled servers to stop
+        for (Map.Entry<String, CountDownLatch> entry : instancesStopped.entrySet()) {
+            awaitStopped(entry.getKey(), entry.getValue(), start);
+        }
+    }
+
+    private void awaitStopped(String instanceUrl, CountDownLatch stopped, long start) {
+        boolean interrupted = false;
+        while (true) {
+            try {
+                if (stopped.await(1, TimeUnit.MINUTES)) {
+                    break;
+                }
+                log("Waiting for the collection to stop for: " + instanceUrl, start);
+            } catch (InterruptedException ie) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
     }
 
     /**
-     * Clean up unused hudson/jenkins collector items
+     * Collects the jobs, builds and configs of a single build server.
      *
      * @param collector    the {@link TeamcityCollector}
-     * @param existingJobs
+     * @param instanceUrl  the build server to collect
+     * @param existingJobs the jobs already stored for the collector
+     * @param instanceJobs the jobs already stored for the build server, their builds are migrated first
+     * @param start        start of the collection run
+     * @return the jobs found on the build server
      */
+    private Set<TeamcityProject> collectInstance(TeamcityCollector collector, String instanceUrl,
+                                                 TeamcityJobIndex existingJobs, List<TeamcityProject> instanceJobs,
+                                                 long start) {
+        logBanner(instanceUrl);
+        buildKeyMigration.migrate(instanceJobs);
+        Set<TeamcityProject> projects;
+        try {
+            projects = teamcityClient.discoverProjects(instanceUrl);
+        } catch (TeamcityPartialResultException pre) {
+            // collect the projects that did load, but still fail the instance so none of its jobs are deleted
+            log("Fetched some jobs", start);
+            collectProjects(collector, instanceUrl, existingJobs, pre.getProjects().keySet());
+            throw pre;
+        }
+        log("Fetched jobs", start);
+        collectProjects(collector, instanceUrl, existingJobs, projects);
+        long[] transferred = transferStats.drain(instanceUrl);
+        LOG.info(instanceUrl + " transferred " + transferred[0] + " bytes, " + transferred[1] + " bytes decoded");
+        log("Finished", start);
+        return projects;
+    }
 
-    private void clean(TeamcityCollector collector, List<TeamcityProject> existingJobs) {
-        Set<ObjectId> uniqueIDs = new HashSet<>();
-        for (com.capitalone.dashboard.model.Component comp : dbComponentRepository
-                .findAll()) {
+    /**
+     * Adds the discovered jobs and fetches builds and configs for the ones that are enabled.
+     * Builds of jobs that are not on a dashboard are never fetched.
+     */
+    private void collectProjects(TeamcityCollector collector, String instanceUrl, TeamcityJobIndex existingJobs,
+                                 Set<TeamcityProject> projects) {
+        addNewJobs(projects, existingJobs, collector);
+        List<TeamcityProject> enabledJobs = new ArrayList<>();
+        for (TeamcityProject job : enabledJobs(collector, instanceUrl)) {
+            if (!job.isPushed() && projects.contains(job)) {
+                enabledJobs.add(job);
+            }
+        }
+        collectJobs(instanceUrl, enabledJobs);
+    }
 
-            if (CollectionUtils.isEmpty(comp.getCollectorItems())) continue;
+    /**
+     * Called by the dashboard watcher. The changes are applied right away, or, while a collection
+     * run is going on, as soon as it has finished.
+     */
+    private void onDashboardChange() {
+        dashboardChanged.set(true);
+        applyDashboardChanges();
+    }
 
-            List<CollectorItem> itemList = comp.getCollectorItems().get(CollectorType.Build);
+    /**
+     * Applies the pending dashboard changes, unless a collection run or another thread applying
+     * them holds the lock; the holder applies them after it releases the lock.
+     */
+    private void applyDashboardChanges() {
+        while (dashboardChanged.get() && collectLock.tryLock()) {
+            try {
+                if (dashboardChanged.getAndSet(false) && watchedCollector != null) {
+                    applyDashboardChange(watchedCollector);
+                }
+            } finally {
+                collectLock.unlock();
+            }
+        }
+    }
 
-            if (CollectionUtils.isEmpty(itemList)) continue;
+    /**
+     * Enables the jobs that were just added to a dashboard, and disables the removed ones, between
+     * collection runs. The builds of newly enabled jobs are collected right away, one build server
+     * after the other, on the calling thread, so a collection run that starts meanwhile waits for them.
+     */
+    private void applyDashboardChange(TeamcityCollector collector) {
+        long start = System.currentTimeMillis();
+        Set<ObjectId> udId = new HashSet<>();
+        udId.add(collector.getId());
+        List<TeamcityProject> enabledJobs = clean(collector, teamcityJobRepository.findByCollectorIdIn(udId));
+        Map<String, List<TeamcityProject>> jobsByInstance = new LinkedHashMap<>();
+        for (TeamcityProject job : enabledJobs) {
+            if (!job.isPushed() && collector.getBuildServers().contains(job.getInstanceUrl())) {
+                jobsByInstance.computeIfAbsent(job.getInstanceUrl(), url -> new ArrayList<>()).add(job);
+            }
+        }
+        for (Map.Entry<String, List<TeamcityProject>> entry : jobsByInstance.entrySet()) {
+            try {
+                collectJobs(entry.getKey(), entry.getValue());
+            } catch (RestClientException rce) {
+                log("Error getting new jobs for: " + entry.getKey(), start);
+            }
+        }
+    }
 
-            for (CollectorItem ci : itemList) {
-                if (collector.getId().equals(ci.getCollectorId())) {
-                    uniqueIDs.add(ci.getId());
-                }
+    /**
+     * Fetches the builds and configs of the given jobs of one build server and adds the new ones.
+     * Runs as a pipeline: the projects are fetched on the calling thread, their new builds are
+     * hydrated by the TeamCity workers and written by the Mongo workers, so the three overlap.
+     * The stages are connected by bounded queues, a stage that falls behind blocks the one feeding it.
+     *
+     * The builds of a job are written in batches on the job's lane of the persist stage, in build
+     * id order, while other jobs are written in parallel on the other lanes. Each lane has its own
+     * writer, so a job is only ever changed and saved by the thread of its lane.
+     *
+     * The details of a job's upcoming builds are requested ahead, up to the detail prefetch
+     * window, while the current one is waited for. With the blocking client they run on a
+     * prefetch pool, with the async client no thread waits for them.
+     *
+     * The queue depth and throughput of the stages are logged every stage stats interval while
+     * they run.
+     */
+    private void collectJobs(String instanceUrl, List<TeamcityProject> jobs) {
+        TeamcityPipelineStage hydrateStage = new TeamcityPipelineStage("hydrate",
+                teamcitySettings.getFetchThreads(), teamcitySettings.getStageQueueSize());
+        TeamcityPartitionedStage persistStage = new TeamcityPartitionedStage("persist",
+                teamcitySettings.getPersistThreads(), teamcitySettings.getStageQueueSize());
+        long interval = teamcitySettings.getStageStatsInterval();
+        ScheduledFuture<?> stageStats = interval <= 0 ? null : STAGE_STATS.scheduleAtFixedRate(
+                () -> LOG.info("Collecting " + instanceUrl + ", " + hydrateStage + ", " + persistStage),
+                interval, interval, TimeUnit.MILLISECONDS);
+        try {
+            collectJobs(jobs, hydrateStage, persistStage);
+        } finally {
+            if (stageStats != null) {
+                stageStats.cancel(false);
             }
         }
+    }
+
+    private void collectJobs(List<TeamcityProject> jobs, TeamcityPipelineStage hydrateStage,
+                             TeamcityPartitionedStage persistStage) {
+        long start = System.currentTimeMillis();
+        AtomicInteger configCount = new AtomicInteger();
+        List<TeamcityBuildWriter> writers = new ArrayList<>();
+        for (int i = 0; i < persistStage.getLaneCount(); i++) {
+            writers.add(new TeamcityBuildWriter(buildStore, teamcityJobRepository,
+                    teamcitySettings.getBuildBatchSize(), teamcitySettings.getBuildFlushInterval()));
+        }
+        ExecutorService prefetchExecutor = prefetchExecutor();
+        RuntimeException failure = null;
+        try {
+            teamcityClient.visitProjectData(jobs, (job, jobData) -> hydrateStage.submit(() -> {
+                TeamcityBuildWriter writer = writers.get(persistStage.lane(job));
+                hydrateBuilds(job, jobData, prefetchExecutor,
+                        newBuilds -> persistStage.submit(job, () -> addNewBuilds(job, newBuilds, writer)));
+                persistStage.submit(job, () -> configCount.addAndGet(addNewConfigs(job, jobData, writer)));
+            }));
+        } catch (RuntimeException re) {
+            failure = re;
+        }
+        log("Fetched projects", start, jobs.size());
+        // keep what was collected before a failure
+        RuntimeException hydrateFailure = hydrateStage.finish();
+        if (prefetchExecutor != null) {
+            prefetchExecutor.shutdownNow();
+        }
+        RuntimeException flushFailure = null;
+        try {
+            persistStage.submitToEachLane(lane -> writers.get(lane).flush());
+        } catch (RuntimeException re) {
+            flushFailure = re;
+        }
+        // the lanes are always finished, so none of their writes outlive the collection of the server
+        RuntimeException persistFailure = persistStage.finish();
+        persistFailure = flushFailure != null ? flushFailure : persistFailure;
+        log("New builds", start, writers.stream().mapToInt(TeamcityBuildWriter::getCount).sum());
+        log("New configs", start, configCount.get());
+        failure = failure != null ? failure : hydrateFailure != null ? hydrateFailure : persistFailure;
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    /**
+     * Pool running the detail requests of the blocking client ahead, sized for a full prefetch
+     * window on every hydrate worker.
+     *
+     * @return the pool, or null if details are not prefetched or the async client is used
+     */
+    private ExecutorService prefetchExecutor() {
+        if (teamcitySettings.isAsyncClient() || teamcitySettings.getDetailPrefetch() <= 1) {
+            return null;
+        }
+        return Executors.newFixedThreadPool(Math.max(1, teamcitySettings.getFetchThreads()) * teamcitySettings.getDetailPrefetch(),
+                new CustomizableThreadFactory("teamcity-prefetch-"));
+    }
+
+    /**
+     * Single threaded executor of a build server. It does not queue, so a server that is still
+     * busy with the previous run is skipped instead of piling up work behind it.
+     */
+    private ExecutorService instanceExecutor(String instanceUrl) {
+        return instanceExecutors.computeIfAbsent(instanceUrl, url -> new ThreadPoolExecutor(1, 1,
+                0L, TimeUnit.MILLISECONDS, new SynchronousQueue<>(),
+                new CustomizableThreadFactory("teamcity-instance-")));
+    }
+
+    private static CustomizableThreadFactory statsThreads() {
+        CustomizableThreadFactory threadFactory = new CustomizableThreadFactory("teamcity-stats-");
+        threadFactory.setDaemon(true);
+        return threadFactory;
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        dashboardWatcher.stop();
+        instanceExecutors.values().forEach(ExecutorService::shutdownNow);
+    }
+
+    /**
+     * Clean up unused hudson/jenkins collector items
+     *
+     * @param collector    the {@link TeamcityCollector}
+     * @param existingJobs
+     * @return the jobs that were enabled
+     */
+
+    private List<TeamcityProject> clean(TeamcityCollector collector, List<TeamcityProject> existingJobs) {
+        long start = System.currentTimeMillis();
+        Set<ObjectId> uniqueIDs = dashboardItems.findEnabledItemIds(collector.getId());
+        LOG.info("Found " + uniqueIDs.size() + " jobs on dashboards in " + (System.currentTimeMillis() - start) + "ms");
         List<TeamcityProject> stateChangeJobList = new ArrayList<>();
         for (TeamcityProject job : existingJobs) {
             if ((job.isEnabled() && !uniqueIDs.contains(job.getId())) ||  // if it was enabled but not on a dashboard
@@ -150,9 +485,16 @@ public class TeamcityCollectorTask extends CollectorTask<TeamcityCollector> {
                 stateChangeJobList.add(job);
             }
         }
+        List<TeamcityProject> enabledJobs = new ArrayList<>();
         if (!CollectionUtils.isEmpty(stateChangeJobList)) {
             teamcityJobRepository.save(stateChangeJobList);
+            for (TeamcityProject job : stateChangeJobList) {
+                if (job.isEnabled()) {
+                    enabledJobs.add(job);
+                }
+            }
         }
+        return enabledJobs;
     }
 
     /**
@@ -165,6 +507,7 @@ public class TeamcityCollectorTask extends CollectorTask<TeamcityCollector> {
      */
     private void deleteUnwantedJobs(List<TeamcityProject> activeJobs, List<TeamcityProject> existingJobs, List<String> activeServers, TeamcityCollector collector) {
 
+        TeamcityJobIndex activeJobIndex = new TeamcityJobIndex(activeJobs);
         List<TeamcityProject> deleteJobList = new ArrayList<>();
         for (TeamcityProject job : existingJobs) {
             if (job.isPushed()) continue; // build servers that push jobs will not be in active servers list by design
@@ -180,7 +523,7 @@ public class TeamcityCollectorTask extends CollectorTask<TeamcityCollector> {
             }
 
             // this is to handle jobs that have been deleted from build servers. Will get 404 if we don't delete them.
-            if (activeServers.contains(job.getInstanceUrl()) && !activeJobs.contains(job)) {
+            if (activeServers.contains(job.getInstanceUrl()) && !activeJobIndex.contains(job)) {
                 deleteJobList.add(job);
             }
 
@@ -191,76 +534,135 @@ public class TeamcityCollectorTask extends CollectorTask<TeamcityCollector> {
     }
 
     /**
-     * Iterates over the enabled build jobs and adds new builds to the database.
+     * Fetches the new builds of a job, and hands them on in batches of the build batch size.
      *
-     * @param enabledJobs list of enabled {@link TeamcityProject}s
-     * @param dataByJob maps a {@link TeamcityProject} to a map of data with {@link Build}s.
+     * @param job     an enabled {@link TeamcityProject}
+     * @param jobData the data of the job, with its {@link Build}s
+     * @param prefetchExecutor runs the detail requests of the blocking client ahead, or null
+     * @param persist receives each batch of new builds in build id order, with the finish time
+     *                the job has been ingested up to after it. The last batch may be empty
      */
-    private void addNewBuilds(List<TeamcityProject> enabledJobs,
-                              Map<TeamcityProject, Map<TeamcityClient.jobData, Set<BaseModel>>> dataByJob) {
-        long start = System.currentTimeMillis();
-        int count = 0;
-
-        for (TeamcityProject job : enabledJobs) {
-            if (job.isPushed()) continue;
-            // process new builds in the order of their build numbers - this has implication to handling of commits in BuildEventListener
-
-            Map<TeamcityClient.jobData, Set<BaseModel>> jobDataSetMap = dataByJob.get(job);
-            if (jobDataSetMap == null) {
-                continue;
+    private void hydrateBuilds(TeamcityProject job, Map<TeamcityClient.jobData, Set<BaseModel>> jobData,
+                               Executor prefetchExecutor, Consumer<NewBuilds> persist) {
+        if (job.isPushed() || jobData == null) {
+            return;
+        }
+        // process new builds in the order of their build ids - this has implication to handling of commits in BuildEventListener.
+        // The build number is free-form text, the id grows with every build
+        ArrayList<BaseModel> builds = Lists.newArrayList(nullSafe(jobData.get(TeamcityClient.jobData.BUILD)));
+
+        builds.sort(Comparator.comparingLong(b -> DefaultTeamcityClient.buildId(((Build) b).getBuildUrl())));
+        // the cursor only moves past builds that were ingested, so a failed build is retried next run
+        List<Long> finishTimes = new ArrayList<>(builds.size());
+        for (BaseModel build : builds) {
+            finishTimes.add(((Build) build).getEndTime());
+        }
+        TeamcityFinishCursor cursor = new TeamcityFinishCursor(job.getLastFinishTime(), finishTimes);
+        int batchSize = Math.max(1, teamcitySettings.getBuildBatchSize());
+        List<Build> batch = new ArrayList<>();
+        List<Supplier<CompletableFuture<Build>>> details = requestDetails(job, builds, prefetchExecutor);
+        int window = teamcitySettings.isAsyncClient() || prefetchExecutor != null
+                ? Math.max(1, teamcitySettings.getDetailPrefetch()) : 1;
+        List<CompletableFuture<Build>> requests = new ArrayList<>(builds.size());
+        int inFlight = 0;
+        for (int i = 0; i < builds.size(); i++) {
+            // keep the detail requests of up to window upcoming builds in flight, they are still used in order
+            while (requests.size() < builds.size() && (requests.size() <= i || inFlight < window)) {
+                Supplier<CompletableFuture<Build>> detail = details.get(requests.size());
+                requests.add(detail == null ? null : detail.get());
+                inFlight += detail == null ? 0 : 1;
             }
-            Set<BaseModel> buildsSet = jobDataSetMap.get(TeamcityClient.jobData.BUILD);
-
-            ArrayList<BaseModel> builds = Lists.newArrayList(nullSafe(buildsSet));
-
-            builds.sort(Comparator.comparingInt(b -> Integer.valueOf(((Build) b).getNumber())));
-            for (BaseModel buildSummary : builds) {
-                if (isNewBuild(job, (Build)buildSummary)) {
-                    Build build = teamcityClient.getBuildDetails(((Build)buildSummary)
-                            .getBuildUrl(), job.getInstanceUrl());
-                    job.setLastUpdated(System.currentTimeMillis());
-                    teamcityJobRepository.save(job);
-                    if (build != null) {
-                        build.setCollectorItemId(job.getId());
-                        buildRepository.save(build);
-                        count++;
-                    }
+            CompletableFuture<Build> request = requests.set(i, null);
+            boolean ingested = true;
+            if (request != null) {
+                inFlight--;
+                Build build = request.join();
+                if (build != null) {
+                    batch.add(build);
+                } else {
+                    ingested = false;
                 }
             }
+            cursor.next(ingested);
+            if (batch.size() >= batchSize) {
+                persist.accept(new NewBuilds(batch, cursor.position()));
+                batch = new ArrayList<>();
+            }
         }
-        log("New builds", start, count);
+        persist.accept(new NewBuilds(batch, cursor.position()));
     }
 
-    private void addNewConfigs(List<TeamcityProject> enabledJobs,
-                              Map<TeamcityProject, Map<TeamcityClient.jobData, Set<BaseModel>>> dataByJob) {
-        long start = System.currentTimeMillis();
-        int count = 0;
-
-        for (TeamcityProject job : enabledJobs) {
-            if (job.isPushed()) continue;
-            // process new builds in the order of their build numbers - this has implication to handling of commits in BuildEventListener
+    /**
+     * Adds the new builds of a job to the writer, and moves the job's finish time cursor past them.
+     *
+     * @param job       an enabled {@link TeamcityProject}
+     * @param newBuilds the new builds of the job
+     * @param writer    the writer of the new builds
+     */
+    private void addNewBuilds(TeamcityProject job, NewBuilds newBuilds, TeamcityBuildWriter writer) {
+        for (Build build : newBuilds.builds) {
+            writer.add(job, build);
+        }
+        writer.advance(job, newBuilds.lastFinishTime);
+    }
 
-            Map<TeamcityClient.jobData, Set<BaseModel>> jobDataSetMap = dataByJob.get(job);
-            if (jobDataSetMap == null) {
-                continue;
+    /**
+     * Finds the new builds of a job. The details of a new build are requested when its supplier is
+     * called: on the async client in async client mode, on the prefetch executor if there is one,
+     * otherwise on the calling thread.
+     *
+     * @return the request of the full build for each new build and null for the others, in the order of the builds
+     */
+    private List<Supplier<CompletableFuture<Build>>> requestDetails(TeamcityProject job, List<BaseModel> builds,
+                                                                    Executor prefetchExecutor) {
+        List<Supplier<CompletableFuture<Build>>> details = new ArrayList<>(builds.size());
+        Set<String> existing = existingBuilds(job, builds);
+        for (BaseModel buildSummary : builds) {
+            Build summary = (Build) buildSummary;
+            if (existing.contains(summary.getBuildUrl())) {
+                details.add(null);
+            } else if (isHydrated(summary)) {
+                details.add(() -> CompletableFuture.completedFuture(summary));
+            } else if (teamcitySettings.isAsyncClient()) {
+                details.add(() -> teamcityClient.getBuildDetailsAsync(summary.getBuildUrl(), job.getInstanceUrl()));
+            } else if (prefetchExecutor != null) {
+                details.add(() -> CompletableFuture.supplyAsync(
+                        () -> teamcityClient.getBuildDetails(summary.getBuildUrl(), job.getInstanceUrl()), prefetchExecutor));
+            } else {
+                details.add(() -> CompletableFuture.completedFuture(
+                        teamcityClient.getBuildDetails(summary.getBuildUrl(), job.getInstanceUrl())));
             }
-            Set<BaseModel> configsSet = jobDataSetMap.get(TeamcityClient.jobData.CONFIG);
+        }
+        return details;
+    }
 
-            ArrayList<BaseModel> configs = Lists.newArrayList(nullSafe(configsSet));
+    /**
+     * Adds the new configs of a job to the database. The job is updated through the writer,
+     * like for its builds, which saves it with the next batch.
+     *
+     * @return the number of configs added
+     */
+    private int addNewConfigs(TeamcityProject job, Map<TeamcityClient.jobData, Set<BaseModel>> jobData,
+                              TeamcityBuildWriter writer) {
+        if (job.isPushed() || jobData == null) {
+            return 0;
+        }
+        int count = 0;
+        ArrayList<BaseModel> configs = Lists.newArrayList(nullSafe(jobData.get(TeamcityClient.jobData.CONFIG)));
 
-            configs.sort(Comparator.comparing(b -> new Date(((CollectorItemConfigHistory) b).getTimestamp())));
+        configs.sort(Comparator.comparing(b -> new Date(((CollectorItemConfigHistory) b).getTimestamp())));
 
-            for (BaseModel config : configs) {
-                if (config != null && isNewConfig(job, (CollectorItemConfigHistory)config)) {
-                    job.setLastUpdated(System.currentTimeMillis());
-                    teamcityJobRepository.save(job);
-                    ((CollectorItemConfigHistory)config).setCollectorItemId(job.getId());
-                    configRepository.save((CollectorItemConfigHistory)config);
-                    count++;
-                }
+        for (BaseModel config : configs) {
+            if (config != null && isNewConfig(job, (CollectorItemConfigHistory)config)) {
+                ((CollectorItemConfigHistory)config).setCollectorItemId(job.getId());
+                configRepository.save((CollectorItemConfigHistory)config);
+                count++;
             }
         }
-        log("New configs", start, count);
+        if (count > 0) {
+            writer.update(job);
+        }
+        return count;
     }
 
     private Set<BaseModel> nullSafe(Set<BaseModel> builds) {
@@ -268,22 +670,21 @@ public class TeamcityCollectorTask extends CollectorTask<TeamcityCollector> {
     }
 
     /**
-     * Adds new {@link TeamcityProject}s to the database as disabled jobs.
+     * Adds new {@link TeamcityProject}s to the database as disabled jobs, and fills in the
+     * nice name, environment and instance url of existing jobs that are missing them.
      *
      * @param jobs         list of {@link TeamcityProject}s
-     * @param existingJobs
+     * @param existingJobs the jobs already stored for the collector
      * @param collector    the {@link TeamcityCollector}
      */
-    private void addNewJobs(Set<TeamcityProject> jobs, List<TeamcityProject> existingJobs, TeamcityCollector collector) {
+    private void addNewJobs(Set<TeamcityProject> jobs, TeamcityJobIndex existingJobs, TeamcityCollector collector) {
         long start = System.currentTimeMillis();
         int count = 0;
 
         List<TeamcityProject> newJobs = new ArrayList<>();
+        List<TeamcityProject> changedJobs = new ArrayList<>();
         for (TeamcityProject job : jobs) {
-            TeamcityProject existing = null;
-            if (!CollectionUtils.isEmpty(existingJobs) && (existingJobs.contains(job))) {
-                existing = existingJobs.get(existingJobs.indexOf(job));
-            }
+            TeamcityProject existing = existingJobs.get(job);
 
             String niceName = getNiceName(job, collector);
             String environment = getEnvironment(job, collector);
@@ -291,6 +692,7 @@ public class TeamcityCollectorTask extends CollectorTask<TeamcityCollector> {
                 job.setCollectorId(collector.getId());
                 job.setEnabled(false); // Do not enable for collection. Will be enabled when added to dashboard
                 job.setDescription(job.getJobName());
+                job.setBuildKey(TeamcityBuildKeyMigration.BUILD_URL_KEY);
                 if (StringUtils.isNotEmpty(niceName)) {
                     job.setNiceName(niceName);
                 }
@@ -300,17 +702,21 @@ public class TeamcityCollectorTask extends CollectorTask<TeamcityCollector> {
                 newJobs.add(job);
                 count++;
             } else {
+                boolean changed = false;
                 if (StringUtils.isEmpty(existing.getNiceName()) && StringUtils.isNotEmpty(niceName)) {
                     existing.setNiceName(niceName);
-                    teamcityJobRepository.save(existing);
+                    changed = true;
                 }
                 if (StringUtils.isEmpty(existing.getEnvironment()) && StringUtils.isNotEmpty(environment)) {
                     existing.setEnvironment(environment);
-                    teamcityJobRepository.save(existing);
+                    changed = true;
                 }
                 if (StringUtils.isEmpty(existing.getInstanceUrl())) {
                     existing.setInstanceUrl(job.getInstanceUrl());
-                    teamcityJobRepository.save(existing);
+                    changed = true;
+                }
+                if (changed) {
+                    changedJobs.add(existing);
                 }
             }
         }
@@ -318,6 +724,9 @@ public class TeamcityCollectorTask extends CollectorTask<TeamcityCollector> {
         if (!CollectionUtils.isEmpty(newJobs)) {
             teamcityJobRepository.save(newJobs);
         }
+        if (!CollectionUtils.isEmpty(changedJobs)) {
+            teamcityJobRepository.save(changedJobs);
+        }
         log("New jobs", start, count);
     }
 
@@ -359,12 +768,34 @@ public class TeamcityCollectorTask extends CollectorTask<TeamcityCollector> {
                 job.getInstanceUrl(), job.getJobName());
     }
 
-    private boolean isNewBuild(TeamcityProject job, Build build) {
-        return buildRepository.findByCollectorItemIdAndNumber(job.getId(),
-                build.getNumber()) == null;
+    // the builds of the job that are already stored, in one query per thousand builds instead of one per build
+    private Set<String> existingBuilds(TeamcityProject job, List<BaseModel> builds) {
+        List<String> buildUrls = new ArrayList<>(builds.size());
+        for (BaseModel build : builds) {
+            buildUrls.add(((Build) build).getBuildUrl());
+        }
+        return buildStore.findExistingBuildUrls(job.getId(), buildUrls);
+    }
+
+    // summaries only carry number, url and status; builds populated from a hydrated list also have a timestamp
+    private boolean isHydrated(Build build) {
+        return build.getTimestamp() != 0;
     }
 
     private boolean isNewConfig(TeamcityProject job, CollectorItemConfigHistory config) {
         return configRepository.findByCollectorItemIdAndTimestamp(job.getId(),config.getTimestamp()) == null;
     }
+
+    /**
+     * A batch of new builds of a job, handed from the hydrate stage to the persist stage.
+     */
+    private static class NewBuilds {
+        private final List<Build> builds;
+        private final long lastFinishTime;
+
+        NewBuilds(List<Build> builds, long lastFinishTime) {
+            this.builds = builds;
+            this.lastFinishTime = lastFinishTime;
+        }
+    }
 }
@@ -0,0 +1,130 @@
+package com.capitalone.dashboard.collector;
+
+import org.apache.commons.codec.binary.Base64;
+import org.apache.commons.lang3.StringUtils;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpHeaders;
+import org.springframework.stereotype.Component;
+
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The Basic Auth headers of each configured Teamcity server, keyed by host:port. They are
+ * built once from the servers, usernames and api keys in {@link TeamcitySettings} and only
+ * rebuilt when those change.
+ */
+@Component
+public class TeamcityCredentials {
+
+    private final TeamcitySettings settings;
+    private volatile Snapshot snapshot;
+
+    @Autowired
+    public TeamcityCredentials(TeamcitySettings settings) {
+        this.settings = settings;
+    }
+
+    /**
+     * Rebuilds the headers if the configured servers or credentials have changed since they were last built.
+     */
+    public void refresh() {
+        List<List<String>> config = Arrays.asList(copy(settings.getServers()), copy(settings.getUsernames()),
+                copy(settings.getApiKeys()));
+        Snapshot current = snapshot;
+        if (current == null || !current.config.equals(config)) {
+            snapshot = new Snapshot(config);
+        }
+    }
+
+    /**
+     * @param uri the request url
+     * @return the headers of the server of the url, or null if it has no credentials
+     */
+    HttpHeaders headers(URI uri) {
+        return current().headers.get(key(uri.getHost(), uri.getPort()));
+    }
+
+    /**
+     * @param uri the request url
+     * @return true if credentials are configured but the server of the url is not one of the configured servers
+     */
+    boolean isUnknownServer(URI uri) {
+        Snapshot current = current();
+        return current.hasCredentials && !current.servers.contains(key(uri.getHost(), uri.getPort()));
+    }
+
+    private Snapshot current() {
+        if (snapshot == null) {
+            refresh();
+        }
+        return snapshot;
+    }
+
+    static HttpHeaders basicAuthHeaders(String userInfo) {
+        byte[] encodedAuth = Base64.encodeBase64(
+                userInfo.getBytes(StandardCharsets.US_ASCII));
+        String authHeader = "Basic " + new String(encodedAuth);
+
+        HttpHeaders headers = new HttpHeaders();
+        headers.set(HttpHeaders.AUTHORIZATION, authHeader);
+        return headers;
+    }
+
+    private static String key(String host, int port) {
+        return host + ":" + port;
+    }
+
+    private static List<String> copy(List<String> list) {
+        return list == null ? Collections.emptyList() : new ArrayList<>(list);
+    }
+
+    private static class Snapshot {
+        private final List<List<String>> config;
+        private final Map<String, HttpHeaders> headers = new HashMap<>();
+        private final Set<String> servers = new HashSet<>();
+        private final boolean hasCredentials;
+
+        Snapshot(List<List<String>> config) {
+            this.config = config;
+            List<String> servers = config.get(0);
+            List<String> usernames = config.get(1);
+            List<String> apiKeys = config.get(2);
+            this.hasCredentials = !servers.isEmpty() && !usernames.isEmpty() && !apiKeys.isEmpty();
+            for (int i = 0; i < servers.size(); i++) {
+                String key = serverKey(servers.get(i));
+                // the first entry of a server wins, even if it has no credentials
+                if (key == null || this.servers.contains(key)) {
+                    continue;
+                }
+                this.servers.add(key);
+                if (i < usernames.size() && i < apiKeys.size()
+                        && StringUtils.isNotEmpty(usernames.get(i)) && StringUtils.isNotEmpty(apiKeys.get(i))) {
+                    headers.put(key, HttpHeaders.readOnlyHttpHeaders(
+                            basicAuthHeaders(usernames.get(i) + ":" + apiKeys.get(i))));
+                }
+            }
+        }
+
+        private static String serverKey(String server) {
+            if (server == null) {
+                return null;
+            }
+            try {
+                URI uri = new URI(server);
+                return StringUtils.isEmpty(uri.getHost()) ? null : key(uri.getHost(), uri.getPort());
+            } catch (URISyntaxException e) {
+                return null;
+            }
+        }
+    }
+}
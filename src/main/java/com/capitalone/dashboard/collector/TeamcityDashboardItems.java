@@ -0,0 +1,60 @@
+package com.capitalone.dashboard.collector;
+
+import com.capitalone.dashboard.model.Component;
+import com.mongodb.Cursor;
+import org.bson.types.ObjectId;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.aggregation.Aggregation;
+import org.springframework.data.mongodb.core.query.Criteria;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import static org.springframework.data.mongodb.core.aggregation.Aggregation.group;
+import static org.springframework.data.mongodb.core.aggregation.Aggregation.match;
+import static org.springframework.data.mongodb.core.aggregation.Aggregation.newAggregation;
+import static org.springframework.data.mongodb.core.aggregation.Aggregation.unwind;
+
+/**
+ * Finds which collector items of this collector are on a dashboard, without loading the
+ * dashboard components.
+ */
+@org.springframework.stereotype.Component
+public class TeamcityDashboardItems {
+
+    private static final String BUILD_ITEMS = "collectorItems.Build";
+
+    private final MongoTemplate mongoTemplate;
+
+    @Autowired
+    public TeamcityDashboardItems(MongoTemplate mongoTemplate) {
+        this.mongoTemplate = mongoTemplate;
+    }
+
+    /**
+     * @param collectorId the id of the collector
+     * @return the ids of the collector's Build collector items that are on a dashboard component
+     */
+    public Set<ObjectId> findEnabledItemIds(ObjectId collectorId) {
+        Criteria ofCollector = Criteria.where(BUILD_ITEMS + ".collectorId").is(collectorId);
+        // a component can have build items of other collectors too, so the items are matched again after unwinding
+        Aggregation aggregation = newAggregation(
+                match(ofCollector),
+                unwind(BUILD_ITEMS),
+                match(ofCollector),
+                group(BUILD_ITEMS + "._id"));
+
+        Set<ObjectId> ids = new HashSet<>();
+        try (Cursor items = TeamcityAggregations.aggregate(mongoTemplate,
+                mongoTemplate.getCollectionName(Component.class), aggregation)) {
+            while (items.hasNext()) {
+                Object id = items.next().get("_id");
+                if (id instanceof ObjectId) {
+                    ids.add((ObjectId) id);
+                }
+            }
+        }
+        return ids;
+    }
+}
@@ -0,0 +1,163 @@
+package com.capitalone.dashboard.collector;
+
+import com.capitalone.dashboard.model.Component;
+import com.mongodb.BasicDBObject;
+import com.mongodb.CommandResult;
+import com.mongodb.DB;
+import com.mongodb.DBObject;
+import com.mongodb.MongoException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.data.mongodb.core.MongoTemplate;
+
+import javax.annotation.PreDestroy;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Watches the dashboard components collection through a MongoDB change stream and calls back
+ * whenever components change, so jobs can be enabled as soon as they are added to a dashboard.
+ *
+ * Change streams need MongoDB 3.6+ running as a replica set; a single node replica set is
+ * enough. The stream is opened with the aggregate and getMore commands, so it does not depend
+ * on the change stream API of the driver. If the stream can not be opened it is retried, the
+ * collector keeps reconciling enabled jobs on every run either way.
+ *
+ * The stream is resumed after the last change it reported. Once that change is no longer in the
+ * oplog the stream is opened again from the current changes, and the changes missed in between
+ * are picked up by calling back once.
+ */
+@org.springframework.stereotype.Component
+public class TeamcityDashboardWatcher {
+    private static final Logger LOG = LoggerFactory.getLogger(TeamcityDashboardWatcher.class);
+
+    private static final long AWAIT_MILLIS = 1000;
+    private static final long RETRY_MILLIS = 30000;
+    // ChangeStreamHistoryLost, ChangeStreamFatalError, InvalidResumeToken and CappedPositionLost,
+    // and the codes MongoDB 3.6 answers with when the resume point is no longer in the oplog
+    private static final Set<Integer> RESUME_LOST = new HashSet<>(Arrays.asList(286, 280, 260, 136, 40576, 40585));
+
+    private final MongoTemplate mongoTemplate;
+    private Thread thread;
+    private volatile boolean running;
+    private Object resumeToken;
+
+    @Autowired
+    public TeamcityDashboardWatcher(MongoTemplate mongoTemplate) {
+        this.mongoTemplate = mongoTemplate;
+    }
+
+    /**
+     * Starts watching, if not watching already.
+     *
+     * @param onChange called on the watcher thread after each batch of component changes
+     */
+    public synchronized void start(Runnable onChange) {
+        if (running) {
+            return;
+        }
+        running = true;
+        thread = new Thread(() -> watch(onChange), "teamcity-dashboard-watcher");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    @PreDestroy
+    public synchronized void stop() {
+        running = false;
+        if (thread != null) {
+            thread.interrupt();
+        }
+    }
+
+    private void watch(Runnable onChange) {
+        while (running) {
+            try {
+                stream(onChange);
+            } catch (RuntimeException re) {
+                if (resumeToken != null && isResumeLost(re)) {
+                    LOG.warn("Dashboard changes can no longer be resumed, watching from the current changes: "
+                            + re.getMessage());
+                    resumeToken = null;
+                    changed(onChange);
+                    continue;
+                }
+                LOG.warn("Dashboard change stream failed, retrying in " + RETRY_MILLIS + "ms: " + re.getMessage());
+                try {
+                    Thread.sleep(RETRY_MILLIS);
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private void stream(Runnable onChange) {
+        DB db = mongoTemplate.getDb();
+        String collection = mongoTemplate.getCollectionName(Component.class);
+        BasicDBObject changeStream = new BasicDBObject();
+        if (resumeToken != null) {
+            changeStream.put("resumeAfter", resumeToken);
+        }
+        List<DBObject> pipeline = Arrays.asList(
+                new BasicDBObject("$changeStream", changeStream),
+                new BasicDBObject("$match", new BasicDBObject("operationType",
+                        new BasicDBObject("$in", Arrays.asList("insert", "update", "replace", "delete")))));
+        CommandResult opened = db.command(new BasicDBObject("aggregate", collection)
+                .append("pipeline", pipeline)
+                .append("cursor", new BasicDBObject()));
+        opened.throwOnError();
+        DBObject cursor = (DBObject) opened.get("cursor");
+        long cursorId = ((Number) cursor.get("id")).longValue();
+        LOG.info("Watching " + collection + " for dashboard changes");
+        handle((List<DBObject>) cursor.get("firstBatch"), onChange);
+        try {
+            while (running && cursorId != 0) {
+                CommandResult more = db.command(new BasicDBObject("getMore", cursorId)
+                        .append("collection", collection)
+                        .append("maxTimeMS", AWAIT_MILLIS));
+                more.throwOnError();
+                cursor = (DBObject) more.get("cursor");
+                cursorId = ((Number) cursor.get("id")).longValue();
+                handle((List<DBObject>) cursor.get("nextBatch"), onChange);
+            }
+        } finally {
+            if (cursorId != 0) {
+                try {
+                    db.command(new BasicDBObject("killCursors", collection)
+                            .append("cursors", Collections.singletonList(cursorId)));
+                } catch (RuntimeException re) {
+                    LOG.debug("Unable to close dashboard change stream", re);
+                }
+            }
+        }
+    }
+
+    private void handle(List<DBObject> events, Runnable onChange) {
+        if (events == null || events.isEmpty()) {
+            return;
+        }
+        // one callback per batch, a dashboard edit usually touches several components at once
+        changed(onChange);
+        resumeToken = events.get(events.size() - 1).get("_id");
+    }
+
+    private static void changed(Runnable onChange) {
+        try {
+            onChange.run();
+        } catch (RuntimeException re) {
+            LOG.error("Error handling dashboard changes", re);
+        }
+    }
+
+    // the stream can not be resumed after the last change reported, it is no longer in the oplog
+    private static boolean isResumeLost(RuntimeException re) {
+        return re instanceof MongoException && RESUME_LOST.contains(((MongoException) re).getCode());
+    }
+}
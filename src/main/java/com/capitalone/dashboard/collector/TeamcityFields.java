@@ -0,0 +1,37 @@
+package com.capitalone.dashboard.collector;
+
+/**
+ * The fields requested from each TeamCity REST endpoint. By default TeamCity returns every
+ * nested object of a project or build, so each call selects only the fields that
+ * {@link DefaultTeamcityClient} reads from its response.
+ */
+final class TeamcityFields {
+
+    // app/rest/projects/id:X - the names of the jobs of the project
+    static final String PROJECT = "id,name,project(id,name)";
+
+    // app/rest/builds/id:X - everything toBuild maps
+    static final String BUILD = "id,number,state,status,startDate,finishDate,"
+            + "revisions(revision(version,vcsBranchName,vcs-root-instance(name,vcsName))),"
+            + "changes(change(id,version,username,date,comment))";
+
+    // app/rest/builds?locator=X - the summary of each build with its finish time for the cursor, and the link to the next page
+    static final String BUILD_LIST = "count,nextHref,build(id,number,status,finishDate)";
+
+    // app/rest/builds?locator=X - every build fully populated, in hydrate-in-list mode
+    static final String HYDRATED_BUILD_LIST = "count,nextHref,build(" + BUILD + ")";
+
+    private TeamcityFields() {
+    }
+
+    /**
+     * Adds a field selection to a REST url.
+     *
+     * @param url    the url, with or without a query
+     * @param fields the fields to select
+     * @return the url selecting the fields
+     */
+    static String select(String url, String fields) {
+        return url + (url.contains("?") ? "&" : "?") + "fields=" + fields;
+    }
+}
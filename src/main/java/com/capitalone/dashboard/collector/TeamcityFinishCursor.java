@@ -0,0 +1,65 @@
+package com.capitalone.dashboard.collector;
+
+import java.util.List;
+import java.util.TreeSet;
+
+/**
+ * Tracks how far the builds of a job have been ingested, by finish time. The builds are processed
+ * in build id order, which is not the order they finished in, so the cursor only moves up to a
+ * finish time once every listed build that finished by then has been ingested. A build that
+ * failed to ingest holds the cursor back, so it is listed and retried next run.
+ */
+final class TeamcityFinishCursor {
+
+    private final long[] pendingMin;
+    private final long[] finishTimes;
+    private final TreeSet<Long> ingested = new TreeSet<>();
+    private long failedMin = Long.MAX_VALUE;
+    private long position;
+    private int processed;
+
+    /**
+     * @param position    the finish time the job has been ingested up to
+     * @param finishTimes the finish times of the listed builds in the order they are processed,
+     *                    0 if unknown
+     */
+    TeamcityFinishCursor(long position, List<Long> finishTimes) {
+        this.position = position;
+        this.finishTimes = new long[finishTimes.size()];
+        this.pendingMin = new long[finishTimes.size() + 1];
+        pendingMin[finishTimes.size()] = Long.MAX_VALUE;
+        for (int i = finishTimes.size() - 1; i >= 0; i--) {
+            this.finishTimes[i] = finishTimes.get(i) == null ? 0 : finishTimes.get(i);
+            pendingMin[i] = this.finishTimes[i] > 0 ? Math.min(this.finishTimes[i], pendingMin[i + 1]) : pendingMin[i + 1];
+        }
+    }
+
+    /**
+     * Records the outcome of the next build.
+     *
+     * @param ingested true if the build was stored, or already had been
+     */
+    void next(boolean ingested) {
+        long finishTime = finishTimes[processed++];
+        if (finishTime <= 0) {
+            return;
+        }
+        if (ingested) {
+            this.ingested.add(finishTime);
+        } else {
+            failedMin = Math.min(failedMin, finishTime);
+        }
+    }
+
+    /**
+     * @return the finish time the job has been ingested up to, after the builds recorded so far.
+     * Builds that finished at the returned time or before do not need to be listed again
+     */
+    long position() {
+        Long upTo = ingested.lower(Math.min(failedMin, pendingMin[processed]));
+        if (upTo != null && upTo > position) {
+            position = upTo;
+        }
+        return position;
+    }
+}
@@ -0,0 +1,126 @@
+package com.capitalone.dashboard.collector;
+
+import com.capitalone.dashboard.model.Build;
+import com.capitalone.dashboard.model.CollectorItemConfigHistory;
+import com.capitalone.dashboard.model.Component;
+import com.capitalone.dashboard.model.TeamcityProject;
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBObject;
+import org.bson.types.ObjectId;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.data.domain.Sort;
+import org.springframework.data.mongodb.core.IndexOperations;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.index.Index;
+import org.springframework.data.mongodb.core.index.IndexField;
+import org.springframework.data.mongodb.core.index.IndexInfo;
+
+import javax.annotation.PostConstruct;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Makes sure the indexes behind the collector's queries exist when it starts, and reports any
+ * of those queries that would still scan a whole collection.
+ */
+@org.springframework.stereotype.Component
+public class TeamcityIndexBootstrap {
+    private static final Logger LOG = LoggerFactory.getLogger(TeamcityIndexBootstrap.class);
+
+    private final MongoTemplate mongoTemplate;
+    private final TeamcitySettings settings;
+
+    @Autowired
+    public TeamcityIndexBootstrap(MongoTemplate mongoTemplate, TeamcitySettings settings) {
+        this.mongoTemplate = mongoTemplate;
+        this.settings = settings;
+    }
+
+    @PostConstruct
+    public void bootstrap() {
+        if (!settings.isEnsureIndexes()) {
+            return;
+        }
+        try {
+            // new builds and the bulk new build lookup
+            ensureIndex(Build.class, "collectorItemId", "buildUrl");
+            // new configs
+            ensureIndex(CollectorItemConfigHistory.class, "collectorItemId", "timestamp");
+            // findEnabledJobs, and findByCollectorIdIn on its prefix
+            ensureIndex(TeamcityProject.class, "collectorId", "options.instanceUrl", "enabled");
+            // the jobs that are on a dashboard
+            ensureIndex(Component.class, "collectorItems.Build.collectorId");
+
+            ObjectId id = new ObjectId();
+            checkPlan(Build.class, "findExistingBuildUrls",
+                    new BasicDBObject("collectorItemId", id).append("buildUrl", ""));
+            checkPlan(CollectorItemConfigHistory.class, "findByCollectorItemIdAndTimestamp",
+                    new BasicDBObject("collectorItemId", id).append("timestamp", 0L));
+            checkPlan(TeamcityProject.class, "findEnabledJobs",
+                    new BasicDBObject("collectorId", id).append("options.instanceUrl", "").append("enabled", true));
+            checkPlan(TeamcityProject.class, "findByCollectorIdIn",
+                    new BasicDBObject("collectorId", new BasicDBObject("$in", Collections.singletonList(id))));
+            checkPlan(Component.class, "enabled jobs",
+                    new BasicDBObject("collectorItems.Build.collectorId", id));
+        } catch (RuntimeException re) {
+            LOG.warn("Unable to verify indexes: " + re.getMessage(), re);
+        }
+    }
+
+    /**
+     * Creates an ascending compound index on the keys, unless an index on exactly those keys exists.
+     */
+    private void ensureIndex(Class<?> entity, String... keys) {
+        IndexOperations indexOps = mongoTemplate.indexOps(entity);
+        List<String> wanted = Arrays.asList(keys);
+        for (IndexInfo info : indexOps.getIndexInfo()) {
+            List<String> existing = new ArrayList<>();
+            for (IndexField field : info.getIndexFields()) {
+                existing.add(field.getKey());
+            }
+            if (existing.equals(wanted)) {
+                return;
+            }
+        }
+        Index index = new Index().background();
+        for (String key : keys) {
+            index.on(key, Sort.Direction.ASC);
+        }
+        LOG.info("Creating index " + wanted + " on " + mongoTemplate.getCollectionName(entity));
+        indexOps.ensureIndex(index);
+    }
+
+    private void checkPlan(Class<?> entity, String queryName, DBObject query) {
+        String collection = mongoTemplate.getCollectionName(entity);
+        DBObject explain = mongoTemplate.getCollection(collection).find(query).explain();
+        DBObject queryPlanner = (DBObject) explain.get("queryPlanner");
+        if (queryPlanner != null && isCollectionScan(queryPlanner.get("winningPlan"))) {
+            LOG.warn("Query " + queryName + " on " + collection + " scans the whole collection: " + query);
+        }
+    }
+
+    private static boolean isCollectionScan(Object plan) {
+        if (plan instanceof List) {
+            for (Object stage : (List<?>) plan) {
+                if (isCollectionScan(stage)) {
+                    return true;
+                }
+            }
+        } else if (plan instanceof DBObject) {
+            DBObject stage = (DBObject) plan;
+            if ("COLLSCAN".equals(stage.get("stage"))) {
+                return true;
+            }
+            for (String key : stage.keySet()) {
+                if (isCollectionScan(stage.get(key))) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,39 @@
+package com.capitalone.dashboard.collector;
+
+import com.capitalone.dashboard.model.TeamcityProject;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Jobs keyed by job url and job name, the identity of a {@link TeamcityProject}, for constant
+ * time lookups when reconciling large numbers of jobs. The key of each job is built once.
+ */
+final class TeamcityJobIndex {
+
+    private final Map<String, TeamcityProject> jobs;
+
+    TeamcityJobIndex(Collection<TeamcityProject> jobs) {
+        this.jobs = new HashMap<>(jobs.size() * 2);
+        for (TeamcityProject job : jobs) {
+            // the first of two equal jobs wins, as with List.indexOf
+            this.jobs.putIfAbsent(key(job), job);
+        }
+    }
+
+    /**
+     * @return the indexed job equal to the given job, or null
+     */
+    TeamcityProject get(TeamcityProject job) {
+        return jobs.get(key(job));
+    }
+
+    boolean contains(TeamcityProject job) {
+        return jobs.containsKey(key(job));
+    }
+
+    private static String key(TeamcityProject job) {
+        return job.getJobUrl() + '\n' + job.getJobName();
+    }
+}
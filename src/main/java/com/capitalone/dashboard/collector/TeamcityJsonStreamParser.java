@@ -0,0 +1,207 @@
+package com.capitalone.dashboard.collector;
+
+import com.capitalone.dashboard.model.BaseModel;
+import com.capitalone.dashboard.model.Build;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Reads TeamCity build responses straight from the response stream into {@link Build}s,
+ * without holding the response body as a String or building a JSON object tree.
+ *
+ * Maps the same fields as the JSON-simple path of {@link DefaultTeamcityClient}.
+ */
+class TeamcityJsonStreamParser {
+
+    private final JsonFactory jsonFactory = new JsonFactory();
+
+    /**
+     * Parses a page of the build list.
+     *
+     * @param in           the response body
+     * @param allBuildsUrl the url of the builds endpoint
+     * @param hydrate      true to fully populate the builds, false for summaries
+     * @return the builds of the page in response order, and the link to the next page
+     * @throws IOException if the response can not be read
+     */
+    TeamcityBuildPage parseBuildList(InputStream in, String allBuildsUrl, boolean hydrate) throws IOException {
+        if (in == null) {
+            return TeamcityBuildPage.EMPTY;
+        }
+        Set<BaseModel> builds = new LinkedHashSet<>();
+        String nextHref = null;
+        try (JsonParser parser = jsonFactory.createParser(in)) {
+            if (parser.nextToken() != JsonToken.START_OBJECT) {
+                return TeamcityBuildPage.EMPTY;
+            }
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String field = parser.getCurrentName();
+                JsonToken value = parser.nextToken();
+                if ("build".equals(field) && value == JsonToken.START_ARRAY) {
+                    while (parser.nextToken() == JsonToken.START_OBJECT) {
+                        builds.add(toBuild(readBuild(parser), allBuildsUrl, hydrate));
+                    }
+                } else if ("nextHref".equals(field) && value == JsonToken.VALUE_STRING) {
+                    nextHref = parser.getText();
+                } else {
+                    parser.skipChildren();
+                }
+            }
+            return new TeamcityBuildPage(builds, nextHref, parser.getCurrentLocation().getByteOffset());
+        }
+    }
+
+    /**
+     * Parses the response of the build detail endpoint.
+     *
+     * @param in       the response body
+     * @param buildUrl the url of the build
+     * @return the Build, or null if the response is empty or the build has not finished
+     * @throws IOException if the response can not be read
+     */
+    Build parseBuild(InputStream in, String buildUrl) throws IOException {
+        if (in == null) {
+            return null;
+        }
+        try (JsonParser parser = jsonFactory.createParser(in)) {
+            if (parser.nextToken() != JsonToken.START_OBJECT) {
+                return null;
+            }
+            return toBuild(readBuild(parser), buildUrl);
+        }
+    }
+
+    /**
+     * Reads the fields of the build object the parser is positioned on. The revisions and changes
+     * are read as maps, other nested objects are skipped.
+     */
+    private BuildFields readBuild(JsonParser parser) throws IOException {
+        BuildFields fields = new BuildFields();
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String field = parser.getCurrentName();
+            JsonToken value = parser.nextToken();
+            if (value == JsonToken.START_OBJECT && "revisions".equals(field)) {
+                fields.revisions = readObject(parser);
+                continue;
+            }
+            if (value == JsonToken.START_OBJECT && "changes".equals(field)) {
+                fields.changes = readObject(parser);
+                continue;
+            }
+            if (value.isStructStart()) {
+                parser.skipChildren();
+                continue;
+            }
+            switch (field) {
+                case "id":
+                    fields.id = parser.getText();
+                    break;
+                case "number":
+                    fields.number = parser.getText();
+                    break;
+                case "state":
+                    fields.state = parser.getText();
+                    break;
+                case "status":
+                    fields.status = parser.getText();
+                    break;
+                case "startDate":
+                    fields.startDate = parser.getText();
+                    break;
+                case "finishDate":
+                    fields.finishDate = parser.getText();
+                    break;
+                default:
+                    break;
+            }
+        }
+        return fields;
+    }
+
+    // reads the object the parser is positioned on, with nested objects as maps and arrays as lists
+    private Map<String, Object> readObject(JsonParser parser) throws IOException {
+        Map<String, Object> object = new HashMap<>();
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String field = parser.getCurrentName();
+            object.put(field, readValue(parser, parser.nextToken()));
+        }
+        return object;
+    }
+
+    private Object readValue(JsonParser parser, JsonToken value) throws IOException {
+        if (value == JsonToken.START_OBJECT) {
+            return readObject(parser);
+        }
+        if (value == JsonToken.START_ARRAY) {
+            List<Object> array = new ArrayList<>();
+            JsonToken item;
+            while ((item = parser.nextToken()) != JsonToken.END_ARRAY) {
+                array.add(readValue(parser, item));
+            }
+            return array;
+        }
+        return value == JsonToken.VALUE_NULL ? null : parser.getText();
+    }
+
+    private Build toBuild(BuildFields fields, String allBuildsUrl, boolean hydrate) {
+        String buildUrl = DefaultTeamcityClient.buildUrl(allBuildsUrl, fields.id);
+        if (hydrate && fields.startDate != null && fields.finishDate != null) {
+            try {
+                Build build = toBuild(fields, buildUrl);
+                if (build != null) {
+                    return build;
+                }
+            } catch (RuntimeException re) {
+                // incomplete build in list, details will be fetched separately
+            }
+        }
+        Build summary = new Build();
+        summary.setNumber(DefaultTeamcityClient.displayNumber(fields.number, fields.id));
+        summary.setBuildUrl(buildUrl);
+        summary.setBuildStatus(DefaultTeamcityClient.getBuildStatus(fields.status));
+        if (fields.finishDate != null) {
+            summary.setEndTime(DefaultTeamcityClient.getTimeInMillis(fields.finishDate));
+        }
+        return summary;
+    }
+
+    private Build toBuild(BuildFields fields, String buildUrl) {
+        // Ignore jobs that are building
+        if (!DefaultTeamcityClient.isFinished(fields.state)) {
+            return null;
+        }
+        long startTime = DefaultTeamcityClient.getTimeInMillis(fields.startDate);
+        long endTime = DefaultTeamcityClient.getTimeInMillis(fields.finishDate);
+        Build build = new Build();
+        build.setNumber(DefaultTeamcityClient.displayNumber(fields.number, fields.id));
+        build.setBuildUrl(buildUrl);
+        build.setTimestamp(System.currentTimeMillis());
+        build.setStartTime(startTime);
+        build.setEndTime(endTime);
+        build.setDuration(endTime - startTime);
+        build.setBuildStatus(DefaultTeamcityClient.getBuildStatus(fields.status));
+        DefaultTeamcityClient.addSourceChanges(build, fields.revisions, fields.changes);
+        return build;
+    }
+
+    private static class BuildFields {
+        private String id;
+        private String number;
+        private String state;
+        private String status;
+        private String startDate;
+        private String finishDate;
+        private Map<String, Object> revisions;
+        private Map<String, Object> changes;
+    }
+}
@@ -0,0 +1,53 @@
+package com.capitalone.dashboard.collector;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Picks the page size of build list requests for each Teamcity instance from the latency and
+ * size of its previous pages, so a page takes about the target time and stays under the
+ * byte limit. Sizes are kept within the configured bounds and at most double per page.
+ */
+class TeamcityPageSizer {
+
+    private final TeamcitySettings settings;
+    private final Map<String, Integer> pageSizes = new ConcurrentHashMap<>();
+
+    TeamcityPageSizer(TeamcitySettings settings) {
+        this.settings = settings;
+    }
+
+    /**
+     * @param instanceUrl the URL for the Teamcity instance
+     * @return the number of builds to request in the next page
+     */
+    int size(String instanceUrl) {
+        return clamp(pageSizes.getOrDefault(instanceUrl, settings.getPageSize()));
+    }
+
+    /**
+     * Records a page fetched from an instance.
+     *
+     * @param instanceUrl   the URL for the Teamcity instance
+     * @param builds        number of builds in the page
+     * @param latencyMillis time taken to fetch and parse the page
+     * @param bytes         size of the response body
+     */
+    void record(String instanceUrl, int builds, long latencyMillis, long bytes) {
+        if (builds <= 0) {
+            return;
+        }
+        long next = (long) size(instanceUrl) * 2;
+        if (latencyMillis > 0) {
+            next = Math.min(next, builds * settings.getTargetPageLatency() / latencyMillis);
+        }
+        if (bytes > 0) {
+            next = Math.min(next, builds * settings.getMaxPageBytes() / bytes);
+        }
+        pageSizes.put(instanceUrl, clamp(next));
+    }
+
+    private int clamp(long size) {
+        return (int) Math.max(settings.getMinPageSize(), Math.min(settings.getMaxPageSize(), size));
+    }
+}
@@ -0,0 +1,29 @@
+package com.capitalone.dashboard.collector;
+
+import com.capitalone.dashboard.model.BaseModel;
+import com.capitalone.dashboard.model.TeamcityProject;
+import org.springframework.web.client.RestClientException;
+
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Thrown when some of the projects of an instance could not be loaded. Carries the projects
+ * that were loaded, so they can still be collected while the instance is treated as failed.
+ */
+public class TeamcityPartialResultException extends RestClientException {
+
+    private static final long serialVersionUID = 1L;
+
+    private final transient Map<TeamcityProject, Map<TeamcityClient.jobData, Set<BaseModel>>> projects;
+
+    public TeamcityPartialResultException(RestClientException cause,
+                                          Map<TeamcityProject, Map<TeamcityClient.jobData, Set<BaseModel>>> projects) {
+        super("Failed to load all projects: " + cause.getMessage(), cause);
+        this.projects = projects;
+    }
+
+    public Map<TeamcityProject, Map<TeamcityClient.jobData, Set<BaseModel>>> getProjects() {
+        return projects;
+    }
+}
@@ -0,0 +1,118 @@
+package com.capitalone.dashboard.collector;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.IntConsumer;
+
+/**
+ * A pipeline stage made of serial lanes. The tasks of a key all run on the same lane, one at a
+ * time and in the order they were submitted, while different keys run in parallel across lanes.
+ *
+ * Once a task of a key fails, the remaining tasks of that key are skipped, as they may depend on it.
+ */
+class TeamcityPartitionedStage {
+    private static final Logger LOG = LoggerFactory.getLogger(TeamcityPartitionedStage.class);
+
+    private final List<TeamcityPipelineStage> lanes = new ArrayList<>();
+    private final Set<Object> failedKeys = ConcurrentHashMap.newKeySet();
+    private final String name;
+
+    /**
+     * @param name      name of the stage, for its threads and stats
+     * @param lanes     number of lanes, each with one worker
+     * @param queueSize number of tasks that can wait on each lane
+     */
+    TeamcityPartitionedStage(String name, int lanes, int queueSize) {
+        this.name = name;
+        for (int i = 0; i < Math.max(1, lanes); i++) {
+            this.lanes.add(new TeamcityPipelineStage(name + "-" + i, 1, queueSize));
+        }
+    }
+
+    /**
+     * Runs a task on the lane of its key, waiting while the lane's queue is full.
+     *
+     * @param key  the key ordering the task, by equals and hashCode
+     * @param task the task
+     */
+    void submit(Object key, Runnable task) {
+        lanes.get(lane(key)).submit(() -> {
+            if (failedKeys.contains(key)) {
+                return;
+            }
+            try {
+                task.run();
+            } catch (RuntimeException re) {
+                failedKeys.add(key);
+                throw re;
+            }
+        });
+    }
+
+    /**
+     * Runs a task on every lane, after the tasks already submitted to it, whether they failed or not.
+     *
+     * @param task the task, given the number of the lane it runs on
+     */
+    void submitToEachLane(IntConsumer task) {
+        for (int i = 0; i < lanes.size(); i++) {
+            int lane = i;
+            lanes.get(i).submit(() -> task.accept(lane));
+        }
+    }
+
+    /**
+     * @return the number of the lane the tasks of a key run on, from 0 to getLaneCount() - 1
+     */
+    int lane(Object key) {
+        return Math.floorMod(key.hashCode(), lanes.size());
+    }
+
+    int getLaneCount() {
+        return lanes.size();
+    }
+
+    /**
+     * Waits for the tasks of all lanes to finish and stops the workers.
+     *
+     * @return the first failure of a task, or null
+     */
+    RuntimeException finish() {
+        RuntimeException failure = null;
+        for (TeamcityPipelineStage lane : lanes) {
+            RuntimeException laneFailure = lane.finish();
+            if (failure == null) {
+                failure = laneFailure;
+            }
+        }
+        LOG.info("Finished " + this);
+        return failure;
+    }
+
+    int getQueueDepth() {
+        return lanes.stream().mapToInt(TeamcityPipelineStage::getQueueDepth).sum();
+    }
+
+    int getMaxQueueDepth() {
+        return lanes.stream().mapToInt(TeamcityPipelineStage::getMaxQueueDepth).max().orElse(0);
+    }
+
+    long getProcessed() {
+        return lanes.stream().mapToLong(TeamcityPipelineStage::getProcessed).sum();
+    }
+
+    double getThroughput() {
+        return lanes.stream().mapToDouble(TeamcityPipelineStage::getThroughput).sum();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("stage %s: %d lanes, %d processed, %.1f/s, queue depth %d (max %d on a lane)", name,
+                lanes.size(), getProcessed(), getThroughput(), getQueueDepth(), getMaxQueueDepth());
+    }
+}
@@ -0,0 +1,130 @@
+package com.capitalone.dashboard.collector;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.web.client.RestClientException;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * A stage of the collection pipeline: a fixed pool of workers fed by a bounded queue.
+ * Submitting to a full queue blocks, so a slow stage holds back the stages that feed it
+ * instead of letting work pile up in memory.
+ */
+class TeamcityPipelineStage {
+    private static final Logger LOG = LoggerFactory.getLogger(TeamcityPipelineStage.class);
+
+    private final String name;
+    private final BlockingQueue<Runnable> queue;
+    private final ThreadPoolExecutor executor;
+    private final long start = System.currentTimeMillis();
+    private final AtomicLong processed = new AtomicLong();
+    private final AtomicInteger maxQueueDepth = new AtomicInteger();
+    private final AtomicReference<RuntimeException> failure = new AtomicReference<>();
+
+    /**
+     * @param name      name of the stage, for its threads and stats
+     * @param threads   number of workers
+     * @param queueSize number of tasks that can wait for a worker
+     */
+    TeamcityPipelineStage(String name, int threads, int queueSize) {
+        this.name = name;
+        this.queue = new ArrayBlockingQueue<>(Math.max(1, queueSize));
+        this.executor = new ThreadPoolExecutor(Math.max(1, threads), Math.max(1, threads), 0L, TimeUnit.MILLISECONDS,
+                queue, new CustomizableThreadFactory("teamcity-" + name + "-"), (task, pool) -> {
+                    if (pool.isShutdown()) {
+                        throw new RejectedExecutionException("Stage " + name + " is shut down");
+                    }
+                    try {
+                        queue.put(task);
+                    } catch (InterruptedException ie) {
+                        Thread.currentThread().interrupt();
+                        throw new RestClientException("Interrupted waiting for stage " + name, ie);
+                    }
+                });
+    }
+
+    /**
+     * Runs a task on the stage, waiting while the queue is full. A task that fails does not stop
+     * the others, the first failure is returned by {@link #finish()}.
+     */
+    void submit(Runnable task) {
+        executor.execute(() -> {
+            try {
+                task.run();
+            } catch (RuntimeException re) {
+                if (!failure.compareAndSet(null, re)) {
+                    LOG.error("Error in stage " + name, re);
+                }
+            } finally {
+                processed.incrementAndGet();
+            }
+        });
+        maxQueueDepth.accumulateAndGet(queue.size(), Math::max);
+    }
+
+    /**
+     * Waits for the submitted tasks to finish and stops the workers. If interrupted, the tasks
+     * that have not started are dropped and the running ones interrupted, and it still returns
+     * only once they have stopped, so no task of the stage outlives it.
+     *
+     * @return the first failure of a task, or null
+     */
+    RuntimeException finish() {
+        executor.shutdown();
+        boolean interrupted = false;
+        while (true) {
+            try {
+                if (executor.awaitTermination(1, TimeUnit.MINUTES)) {
+                    break;
+                }
+                LOG.info("Waiting for " + this);
+            } catch (InterruptedException ie) {
+                if (!interrupted) {
+                    interrupted = true;
+                    executor.shutdownNow();
+                    failure.compareAndSet(null, new RestClientException("Interrupted in stage " + name, ie));
+                }
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        LOG.info("Finished " + this);
+        return failure.get();
+    }
+
+    int getQueueDepth() {
+        return queue.size();
+    }
+
+    int getMaxQueueDepth() {
+        return maxQueueDepth.get();
+    }
+
+    long getProcessed() {
+        return processed.get();
+    }
+
+    /**
+     * @return tasks processed per second since the stage was started
+     */
+    double getThroughput() {
+        long elapsed = Math.max(1, System.currentTimeMillis() - start);
+        return processed.get() * 1000.0 / elapsed;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("stage %s: %d processed, %.1f/s, queue depth %d (max %d)", name, getProcessed(),
+                getThroughput(), getQueueDepth(), getMaxQueueDepth());
+    }
+}
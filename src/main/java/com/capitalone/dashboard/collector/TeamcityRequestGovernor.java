@@ -0,0 +1,297 @@
+package com.capitalone.dashboard.collector;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpStatus;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.stereotype.Component;
+import org.springframework.web.client.RestClientException;
+
+import java.net.URI;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Limits the load the collector puts on each Teamcity instance. Requests to an instance are
+ * capped by a token bucket, and the number of requests in flight follows AIMD: the limit grows
+ * by one per round of healthy responses and halves when the server answers 429/503 or its
+ * latency rises well above its usual latency.
+ *
+ * The limiter of a server is created on its first request, from the limits configured for its
+ * url, and created again after {@link #refresh()} finds the limits changed.
+ *
+ * Requests are admitted in the order they asked. A blocking request waits on its thread, a
+ * non-blocking one is handed its permit by the request that frees its slot, or by the timer
+ * that refills the tokens.
+ */
+@Component
+public class TeamcityRequestGovernor {
+    private static final Logger LOG = LoggerFactory.getLogger(TeamcityRequestGovernor.class);
+
+    // a response this many times slower than the usual latency of the server counts as overload
+    private static final double LATENCY_BACKOFF_FACTOR = 2.0;
+    private static final double LATENCY_SMOOTHING = 0.1;
+
+    private static final ScheduledExecutorService REFILLS = Executors.newSingleThreadScheduledExecutor(refillThreads());
+
+    private final TeamcitySettings settings;
+    private final Map<String, ServerLimiter> limiters = new ConcurrentHashMap<>();
+    private List<Object> limits;
+
+    @Autowired
+    public TeamcityRequestGovernor(TeamcitySettings settings) {
+        this.settings = settings;
+    }
+
+    /**
+     * Drops the limiters of all servers if the configured limits have changed since they were
+     * created. Requests in flight still release the limiter they were admitted by.
+     */
+    public synchronized void refresh() {
+        List<Object> current = Arrays.asList(settings.getRequestRate(), settings.getMaxConcurrency(),
+                new ArrayList<>(settings.getServerLimits()));
+        if (!current.equals(limits)) {
+            limits = current;
+            limiters.clear();
+        }
+    }
+
+    /**
+     * Waits until a request to the server of the url is allowed.
+     *
+     * @param uri the request url
+     * @return the permit, to be closed when the response has been read
+     * @throws RestClientException if interrupted while waiting
+     */
+    Permit acquire(URI uri) {
+        ServerLimiter limiter = limiter(uri);
+        CompletableFuture<Void> admission = limiter.admit();
+        try {
+            admission.get();
+        } catch (InterruptedException ie) {
+            // admitted just as it was interrupted, the slot is given to the next request
+            if (!admission.cancel(false)) {
+                limiter.abandon();
+            }
+            Thread.currentThread().interrupt();
+            throw new RestClientException("Interrupted waiting to call " + uri.getHost(), ie);
+        } catch (ExecutionException ee) {
+            throw new IllegalStateException(ee.getCause());
+        }
+        return new Permit(limiter, endpoint(uri));
+    }
+
+    /**
+     * Returns at once with the permit of a request to the server of the url, completed when the
+     * request is allowed. No thread waits for it.
+     *
+     * @param uri the request url
+     * @return the permit, to be closed when the response has been read
+     */
+    CompletableFuture<Permit> acquireAsync(URI uri) {
+        ServerLimiter limiter = limiter(uri);
+        String endpoint = endpoint(uri);
+        return limiter.admit().thenApply(admitted -> new Permit(limiter, endpoint));
+    }
+
+    private ServerLimiter limiter(URI uri) {
+        return limiters.computeIfAbsent(TeamcityTransferStats.host(uri), this::newLimiter);
+    }
+
+    // requests are compared to the usual latency of the same kind of request, a build list page is slower than a single build
+    private static String endpoint(URI uri) {
+        String query = uri.getRawQuery();
+        return uri.getRawPath().replaceAll("/id:[^/]*", "/id")
+                + (query != null && query.contains("locator=") ? "?locator" : "");
+    }
+
+    private ServerLimiter newLimiter(String host) {
+        double requestRate = settings.getRequestRate();
+        int maxConcurrency = settings.getMaxConcurrency();
+        for (TeamcitySettings.ServerLimit serverLimit : settings.getServerLimits()) {
+            if (serverLimit == null || serverLimit.getUrl() == null || !host.equals(hostOf(serverLimit.getUrl()))) {
+                continue;
+            }
+            if (serverLimit.getRequestRate() != null) {
+                requestRate = serverLimit.getRequestRate();
+            }
+            if (serverLimit.getMaxConcurrency() != null) {
+                maxConcurrency = serverLimit.getMaxConcurrency();
+            }
+            break;
+        }
+        return new ServerLimiter(host, requestRate, Math.max(1, maxConcurrency));
+    }
+
+    private static CustomizableThreadFactory refillThreads() {
+        CustomizableThreadFactory threadFactory = new CustomizableThreadFactory("teamcity-governor-");
+        threadFactory.setDaemon(true);
+        return threadFactory;
+    }
+
+    private static String hostOf(String server) {
+        try {
+            return TeamcityTransferStats.host(URI.create(server));
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    /**
+     * A request in flight. Closing it frees its slot and feeds its status and latency back to the limiter.
+     */
+    static class Permit implements AutoCloseable {
+        private final ServerLimiter limiter;
+        private final String endpoint;
+        private final long start = System.currentTimeMillis();
+        private int status;
+
+        private Permit(ServerLimiter limiter, String endpoint) {
+            this.limiter = limiter;
+            this.endpoint = endpoint;
+        }
+
+        void status(int status) {
+            this.status = status;
+        }
+
+        @Override
+        public void close() {
+            limiter.release(endpoint, status, start, System.currentTimeMillis() - start);
+        }
+    }
+
+    private static class ServerLimiter {
+        private final String host;
+        private final double requestRate;
+        private final int maxConcurrency;
+
+        private double tokens;
+        private long lastRefill = System.nanoTime();
+        private double limit;
+        private int inFlight;
+        private long lastBackoff;
+        private final Map<String, Double> usualLatencies = new HashMap<>();
+        private final Deque<CompletableFuture<Void>> waiters = new ArrayDeque<>();
+        private boolean refillScheduled;
+
+        ServerLimiter(String host, double requestRate, int maxConcurrency) {
+            this.host = host;
+            this.requestRate = requestRate;
+            this.maxConcurrency = maxConcurrency;
+            this.tokens = Math.max(1, requestRate);
+            this.limit = maxConcurrency;
+        }
+
+        /**
+         * Queues a request, and admits it at once if the server allows it.
+         *
+         * @return completed when the request is admitted. A request cancelled before that gives up its turn
+         */
+        CompletableFuture<Void> admit() {
+            CompletableFuture<Void> admission = new CompletableFuture<>();
+            synchronized (this) {
+                waiters.add(admission);
+            }
+            admitWaiting();
+            return admission;
+        }
+
+        // both conditions are checked together for each waiting request, the admissions are completed outside the monitor
+        private void admitWaiting() {
+            while (true) {
+                CompletableFuture<Void> next;
+                synchronized (this) {
+                    while (!waiters.isEmpty() && waiters.peek().isDone()) {
+                        waiters.poll();
+                    }
+                    if (waiters.isEmpty() || inFlight >= (int) limit) {
+                        return;
+                    }
+                    if (requestRate > 0) {
+                        refill();
+                        if (tokens < 1) {
+                            scheduleRefill();
+                            return;
+                        }
+                        tokens--;
+                    }
+                    inFlight++;
+                    next = waiters.poll();
+                }
+                if (!next.complete(null)) {
+                    // cancelled since it was checked
+                    synchronized (this) {
+                        inFlight--;
+                    }
+                }
+            }
+        }
+
+        private void scheduleRefill() {
+            if (refillScheduled) {
+                return;
+            }
+            refillScheduled = true;
+            REFILLS.schedule(() -> {
+                synchronized (this) {
+                    refillScheduled = false;
+                }
+                admitWaiting();
+            }, Math.max(1, (long) Math.ceil((1 - tokens) * 1000 / requestRate)), TimeUnit.MILLISECONDS);
+        }
+
+        // frees the slot of an admitted request that was not sent, without feeding anything back
+        void abandon() {
+            synchronized (this) {
+                inFlight--;
+            }
+            admitWaiting();
+        }
+
+        void release(String endpoint, int status, long start, long latency) {
+            synchronized (this) {
+                inFlight--;
+                boolean throttled = status == HttpStatus.TOO_MANY_REQUESTS.value()
+                        || status == HttpStatus.SERVICE_UNAVAILABLE.value();
+                Double usualLatency = usualLatencies.get(endpoint);
+                boolean slow = usualLatency != null && latency > usualLatency * LATENCY_BACKOFF_FACTOR;
+                if (!throttled && !slow) {
+                    limit = Math.min(maxConcurrency, limit + 1 / limit);
+                } else if (start >= lastBackoff) {
+                    // requests sent before the last back off do not halve the limit again
+                    lastBackoff = System.currentTimeMillis();
+                    double backedOff = Math.max(1, limit / 2);
+                    if ((int) backedOff < (int) limit) {
+                        LOG.info("Backing off " + host + " to " + (int) backedOff + " requests in flight"
+                                + (throttled ? ", status " + status : ", latency " + latency + "ms"));
+                    }
+                    limit = backedOff;
+                }
+                if (!throttled) {
+                    usualLatencies.put(endpoint, usualLatency == null ? latency
+                            : usualLatency + LATENCY_SMOOTHING * (latency - usualLatency));
+                }
+            }
+            admitWaiting();
+        }
+
+        private void refill() {
+            long now = System.nanoTime();
+            tokens = Math.min(Math.max(1, requestRate), tokens + (now - lastRefill) * requestRate / 1e9);
+            lastRefill = now;
+        }
+    }
+}
@@ -0,0 +1,140 @@
+package com.capitalone.dashboard.collector;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpHeaders;
+import org.springframework.stereotype.Component;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.UnaryOperator;
+
+/**
+ * Keeps the validators (ETag / Last-Modified) and the parsed result of TeamCity responses that
+ * rarely change between runs, so they can be requested conditionally and reused on a 304.
+ *
+ * Holds at most responseCacheSize responses, dropping the least recently used. Urls that only
+ * differ in their finish date cursor share one entry, which holds the response of the last of
+ * them, so a project takes one entry however often its cursor moves. Results are copied in and
+ * out of the cache, callers are free to change the ones they get.
+ *
+ * A request takes the entry of its url once, and uses its validators and, on a 304, its result,
+ * so an entry dropped or replaced in between can not leave it without the result it revalidated.
+ */
+@Component
+public class TeamcityResponseCache {
+
+    // the cursor of a build list locator, the rest of the locator stays the same between runs
+    private static final String CURSOR = ",?finishDate:\\([^)]*\\)";
+
+    private final Map<String, Entry> entries;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    @Autowired
+    public TeamcityResponseCache(TeamcitySettings settings) {
+        int maxEntries = Math.max(1, settings.getResponseCacheSize());
+        this.entries = Collections.synchronizedMap(new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                return size() > maxEntries;
+            }
+        });
+    }
+
+    /**
+     * The cached response of a url.
+     *
+     * @param url the request url
+     * @return the entry, or null if nothing is cached for the url
+     */
+    Entry lookup(String url) {
+        Entry entry = entries.get(key(url));
+        // the entry of another cursor
+        return entry == null || !entry.url.equals(url) ? null : entry;
+    }
+
+    /**
+     * Returns a copy of the result of an entry after the server answered 304 Not Modified to its validators.
+     *
+     * @param entry the entry the request was made with
+     * @return the previously parsed result
+     */
+    @SuppressWarnings("unchecked")
+    <T> T hit(Entry entry) {
+        hits.incrementAndGet();
+        return (T) entry.copy.apply(entry.value);
+    }
+
+    /**
+     * Caches a copy of the parsed result of a full response, if the server sent validators for it.
+     *
+     * @param url             the request url
+     * @param responseHeaders the headers of the response
+     * @param value           the parsed result
+     * @param copy            copies the result, so the cached one is never shared
+     */
+    @SuppressWarnings("unchecked")
+    <T> void put(String url, HttpHeaders responseHeaders, T value, UnaryOperator<T> copy) {
+        misses.incrementAndGet();
+        String eTag = responseHeaders.getETag();
+        String lastModified = responseHeaders.getFirst(HttpHeaders.LAST_MODIFIED);
+        if (eTag == null && lastModified == null) {
+            entries.remove(key(url));
+            return;
+        }
+        entries.put(key(url), new Entry(url, eTag, lastModified, copy.apply(value), (UnaryOperator<Object>) copy));
+    }
+
+    static String key(String url) {
+        return url.replaceFirst(CURSOR, "");
+    }
+
+    int size() {
+        return entries.size();
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * The validators and parsed result of one response, which never change once cached.
+     */
+    static class Entry {
+        private final String url;
+        private final String eTag;
+        private final String lastModified;
+        private final Object value;
+        private final UnaryOperator<Object> copy;
+
+        Entry(String url, String eTag, String lastModified, Object value, UnaryOperator<Object> copy) {
+            this.url = url;
+            this.eTag = eTag;
+            this.lastModified = lastModified;
+            this.value = value;
+            this.copy = copy;
+        }
+
+        /**
+         * @return If-None-Match / If-Modified-Since headers to request the url conditionally
+         */
+        HttpHeaders validators() {
+            HttpHeaders headers = new HttpHeaders();
+            if (eTag != null) {
+                headers.set(HttpHeaders.IF_NONE_MATCH, eTag);
+            }
+            if (lastModified != null) {
+                headers.set(HttpHeaders.IF_MODIFIED_SINCE, lastModified);
+            }
+            return headers;
+        }
+    }
+}
@@ -7,6 +7,7 @@ import org.springframework.stereotype.Component;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.Objects;
 
 /**
  * Bean to hold settings specific to the Teamcity collector.
@@ -35,6 +36,96 @@ public class TeamcitySettings {
     @Value("${teamcity.readTimeout:20000}")
     private int readTimeout;
 
+    @Value("${teamcity.fullResync:false}")
+    private boolean fullResync;
+
+    @Value("${teamcity.finishDateLookback:300000}")
+    private long finishDateLookback;
+
+    @Value("${teamcity.instanceTimeout:1800000}")
+    private long instanceTimeout;
+
+    @Value("${teamcity.projectParallelism:1}")
+    private int projectParallelism;
+
+    @Value("${teamcity.hydrateInList:false}")
+    private boolean hydrateInList;
+
+    @Value("${teamcity.streamingParser:false}")
+    private boolean streamingParser;
+
+    @Value("${teamcity.asyncClient:false}")
+    private boolean asyncClient;
+
+    @Value("${teamcity.ensureIndexes:true}")
+    private boolean ensureIndexes;
+
+    @Value("${teamcity.watchDashboards:false}")
+    private boolean watchDashboards;
+
+    @Value("${teamcity.buildBatchSize:500}")
+    private int buildBatchSize;
+
+    @Value("${teamcity.buildFlushInterval:5000}")
+    private long buildFlushInterval;
+
+    @Value("${teamcity.fetchThreads:2}")
+    private int fetchThreads;
+
+    @Value("${teamcity.persistThreads:1}")
+    private int persistThreads;
+
+    @Value("${teamcity.stageQueueSize:16}")
+    private int stageQueueSize;
+
+    @Value("${teamcity.stageStatsInterval:60000}")
+    private long stageStatsInterval;
+
+    @Value("${teamcity.detailPrefetch:4}")
+    private int detailPrefetch;
+
+    @Value("${teamcity.pageSize:100}")
+    private int pageSize;
+
+    @Value("${teamcity.minPageSize:25}")
+    private int minPageSize;
+
+    @Value("${teamcity.maxPageSize:1000}")
+    private int maxPageSize;
+
+    @Value("${teamcity.targetPageLatency:2000}")
+    private long targetPageLatency;
+
+    @Value("${teamcity.maxPageBytes:1048576}")
+    private long maxPageBytes;
+
+    @Value("${teamcity.responseCacheSize:1000}")
+    private int responseCacheSize;
+
+    @Value("${teamcity.connectionRequestTimeout:20000}")
+    private int connectionRequestTimeout;
+
+    @Value("${teamcity.maxConnections:50}")
+    private int maxConnections;
+
+    @Value("${teamcity.maxConnectionsPerRoute:10}")
+    private int maxConnectionsPerRoute;
+
+    @Value("${teamcity.requestRate:20}")
+    private double requestRate;
+
+    @Value("${teamcity.maxConcurrency:10}")
+    private int maxConcurrency;
+
+    //limits of each server by url, override the limits for all servers
+    private List<ServerLimit> serverLimits = new ArrayList<>();
+
+    @Value("${teamcity.keepAlive:30000}")
+    private long keepAlive;
+
+    @Value("${teamcity.idleConnectionTimeout:60000}")
+    private long idleConnectionTimeout;
+
     public String getCron() {
         return cron;
     }
@@ -131,4 +222,169 @@ public class TeamcitySettings {
     public int getReadTimeout() { return readTimeout; }
 
     public void setReadTimeout(int readTimeout) { this.readTimeout = readTimeout; }
+
+    public boolean isFullResync() { return fullResync; }
+
+    public void setFullResync(boolean fullResync) { this.fullResync = fullResync; }
+
+    public long getFinishDateLookback() { return finishDateLookback; }
+
+    public void setFinishDateLookback(long finishDateLookback) { this.finishDateLookback = finishDateLookback; }
+
+    public long getInstanceTimeout() { return instanceTimeout; }
+
+    public void setInstanceTimeout(long instanceTimeout) { this.instanceTimeout = instanceTimeout; }
+
+    public int getProjectParallelism() { return projectParallelism; }
+
+    public void setProjectParallelism(int projectParallelism) { this.projectParallelism = projectParallelism; }
+
+    public boolean isHydrateInList() { return hydrateInList; }
+
+    public void setHydrateInList(boolean hydrateInList) { this.hydrateInList = hydrateInList; }
+
+    public boolean isStreamingParser() { return streamingParser; }
+
+    public void setStreamingParser(boolean streamingParser) { this.streamingParser = streamingParser; }
+
+    public boolean isAsyncClient() { return asyncClient; }
+
+    public void setAsyncClient(boolean asyncClient) { this.asyncClient = asyncClient; }
+
+    public boolean isEnsureIndexes() { return ensureIndexes; }
+
+    public void setEnsureIndexes(boolean ensureIndexes) { this.ensureIndexes = ensureIndexes; }
+
+    public boolean isWatchDashboards() { return watchDashboards; }
+
+    public void setWatchDashboards(boolean watchDashboards) { this.watchDashboards = watchDashboards; }
+
+    public int getBuildBatchSize() { return buildBatchSize; }
+
+    public void setBuildBatchSize(int buildBatchSize) { this.buildBatchSize = buildBatchSize; }
+
+    public long getBuildFlushInterval() { return buildFlushInterval; }
+
+    public void setBuildFlushInterval(long buildFlushInterval) { this.buildFlushInterval = buildFlushInterval; }
+
+    public int getFetchThreads() { return fetchThreads; }
+
+    public void setFetchThreads(int fetchThreads) { this.fetchThreads = fetchThreads; }
+
+    public int getPersistThreads() { return persistThreads; }
+
+    public void setPersistThreads(int persistThreads) { this.persistThreads = persistThreads; }
+
+    public int getStageQueueSize() { return stageQueueSize; }
+
+    public void setStageQueueSize(int stageQueueSize) { this.stageQueueSize = stageQueueSize; }
+
+    public long getStageStatsInterval() { return stageStatsInterval; }
+
+    public void setStageStatsInterval(long stageStatsInterval) { this.stageStatsInterval = stageStatsInterval; }
+
+    public int getDetailPrefetch() { return detailPrefetch; }
+
+    public void setDetailPrefetch(int detailPrefetch) { this.detailPrefetch = detailPrefetch; }
+
+    public int getPageSize() { return pageSize; }
+
+    public void setPageSize(int pageSize) { this.pageSize = pageSize; }
+
+    public int getMinPageSize() { return minPageSize; }
+
+    public void setMinPageSize(int minPageSize) { this.minPageSize = minPageSize; }
+
+    public int getMaxPageSize() { return maxPageSize; }
+
+    public void setMaxPageSize(int maxPageSize) { this.maxPageSize = maxPageSize; }
+
+    public long getTargetPageLatency() { return targetPageLatency; }
+
+    public void setTargetPageLatency(long targetPageLatency) { this.targetPageLatency = targetPageLatency; }
+
+    public long getMaxPageBytes() { return maxPageBytes; }
+
+    public void setMaxPageBytes(long maxPageBytes) { this.maxPageBytes = maxPageBytes; }
+
+    public int getResponseCacheSize() { return responseCacheSize; }
+
+    public void setResponseCacheSize(int responseCacheSize) { this.responseCacheSize = responseCacheSize; }
+
+    public int getConnectionRequestTimeout() { return connectionRequestTimeout; }
+
+    public void setConnectionRequestTimeout(int connectionRequestTimeout) { this.connectionRequestTimeout = connectionRequestTimeout; }
+
+    public int getMaxConnections() { return maxConnections; }
+
+    public void setMaxConnections(int maxConnections) { this.maxConnections = maxConnections; }
+
+    public int getMaxConnectionsPerRoute() { return maxConnectionsPerRoute; }
+
+    public void setMaxConnectionsPerRoute(int maxConnectionsPerRoute) { this.maxConnectionsPerRoute = maxConnectionsPerRoute; }
+
+    public double getRequestRate() { return requestRate; }
+
+    public void setRequestRate(double requestRate) { this.requestRate = requestRate; }
+
+    public int getMaxConcurrency() { return maxConcurrency; }
+
+    public void setMaxConcurrency(int maxConcurrency) { this.maxConcurrency = maxConcurrency; }
+
+    public List<ServerLimit> getServerLimits() { return serverLimits; }
+
+    public void setServerLimits(List<ServerLimit> serverLimits) { this.serverLimits = serverLimits; }
+
+    public long getKeepAlive() { return keepAlive; }
+
+    public void setKeepAlive(long keepAlive) { this.keepAlive = keepAlive; }
+
+    public long getIdleConnectionTimeout() { return idleConnectionTimeout; }
+
+    public void setIdleConnectionTimeout(long idleConnectionTimeout) { this.idleConnectionTimeout = idleConnectionTimeout; }
+
+    /**
+     * The limits of one server. They apply to the requests to the host and port of the url, unset
+     * limits fall back to the limits for all servers.
+     */
+    public static class ServerLimit {
+        private String url;
+        private Integer maxConnections;
+        private Double requestRate;
+        private Integer maxConcurrency;
+
+        public String getUrl() { return url; }
+
+        public void setUrl(String url) { this.url = url; }
+
+        public Integer getMaxConnections() { return maxConnections; }
+
+        public void setMaxConnections(Integer maxConnections) { this.maxConnections = maxConnections; }
+
+        public Double getRequestRate() { return requestRate; }
+
+        public void setRequestRate(Double requestRate) { this.requestRate = requestRate; }
+
+        public Integer getMaxConcurrency() { return maxConcurrency; }
+
+        public void setMaxConcurrency(Integer maxConcurrency) { this.maxConcurrency = maxConcurrency; }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (o == null || getClass() != o.getClass()) {
+                return false;
+            }
+            ServerLimit that = (ServerLimit) o;
+            return Objects.equals(url, that.url) && Objects.equals(maxConnections, that.maxConnections)
+                    && Objects.equals(requestRate, that.requestRate) && Objects.equals(maxConcurrency, that.maxConcurrency);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(url, maxConnections, requestRate, maxConcurrency);
+        }
+    }
 }
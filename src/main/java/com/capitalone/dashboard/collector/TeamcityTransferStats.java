@@ -0,0 +1,73 @@
+package com.capitalone.dashboard.collector;
+
+import org.springframework.stereotype.Component;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counts the response bytes received from each Teamcity instance, both as sent over the wire
+ * (compressed) and after decoding.
+ */
+@Component
+public class TeamcityTransferStats {
+
+    private final Map<String, AtomicLong> wireBytes = new ConcurrentHashMap<>();
+    private final Map<String, AtomicLong> decodedBytes = new ConcurrentHashMap<>();
+
+    /**
+     * Wraps a response stream so the bytes read from it are counted.
+     *
+     * @param in      the response stream
+     * @param host    host[:port] of the instance
+     * @param decoded true if the stream is decoded, false if it is the stream off the wire
+     * @return the counting stream
+     */
+    InputStream count(InputStream in, String host, boolean decoded) {
+        AtomicLong counter = (decoded ? decodedBytes : wireBytes).computeIfAbsent(host, h -> new AtomicLong());
+        return new FilterInputStream(in) {
+            @Override
+            public int read() throws IOException {
+                int b = super.read();
+                if (b >= 0) {
+                    counter.incrementAndGet();
+                }
+                return b;
+            }
+
+            @Override
+            public int read(byte[] buffer, int offset, int length) throws IOException {
+                int n = super.read(buffer, offset, length);
+                if (n > 0) {
+                    counter.addAndGet(n);
+                }
+                return n;
+            }
+        };
+    }
+
+    /**
+     * Returns and resets the byte counts of an instance.
+     *
+     * @param instanceUrl the URL for the Teamcity instance
+     * @return the wire and decoded byte counts
+     */
+    public long[] drain(String instanceUrl) {
+        String host = host(URI.create(instanceUrl));
+        return new long[]{drain(wireBytes, host), drain(decodedBytes, host)};
+    }
+
+    private long drain(Map<String, AtomicLong> counters, String host) {
+        AtomicLong counter = counters.get(host);
+        return counter == null ? 0 : counter.getAndSet(0);
+    }
+
+    static String host(URI uri) {
+        return uri.getPort() == -1 ? uri.getHost() : uri.getHost() + ":" + uri.getPort();
+    }
+}
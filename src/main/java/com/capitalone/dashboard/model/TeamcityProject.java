@@ -5,6 +5,44 @@ package com.capitalone.dashboard.model;
  */
 public class TeamcityProject extends JobCollectorItem {
 
+    public static final String PROJECT_ID = "projectId";
+    // build id cursor of earlier versions, dropped from the options once the finish time cursor is set
+    public static final String LAST_BUILD_ID = "lastBuildId";
+    // build key marker of earlier versions, dropped from the options once the build key is set
+    public static final String BUILD_KEY = "buildKey";
+
+    // finish time of the newest build that all builds finished before it have been ingested up to.
+    // Kept out of the options, which identify the collector item
+    private long lastFinishTime;
+    // the key the builds of this project have been migrated to
+    private String buildKey;
+
+    public String getProjectId() {
+        return (String) getOptions().get(PROJECT_ID);
+    }
+
+    public void setProjectId(String projectId) {
+        getOptions().put(PROJECT_ID, projectId);
+    }
+
+    public long getLastFinishTime() {
+        return lastFinishTime;
+    }
+
+    public void setLastFinishTime(long lastFinishTime) {
+        this.lastFinishTime = lastFinishTime;
+        getOptions().remove(LAST_BUILD_ID);
+    }
+
+    public String getBuildKey() {
+        return buildKey;
+    }
+
+    public void setBuildKey(String buildKey) {
+        this.buildKey = buildKey;
+        getOptions().remove(BUILD_KEY);
+    }
+
     @Override
     public boolean equals(Object o) {
         if (this == o) {
@@ -0,0 +1,82 @@
+package com.capitalone.dashboard.collector;
+
+import com.mongodb.MongoClient;
+import de.flapdoodle.embed.mongo.MongodExecutable;
+import de.flapdoodle.embed.mongo.MongodStarter;
+import de.flapdoodle.embed.mongo.config.MongoCmdOptionsBuilder;
+import de.flapdoodle.embed.mongo.config.MongodConfigBuilder;
+import de.flapdoodle.embed.mongo.config.Net;
+import de.flapdoodle.embed.mongo.config.Storage;
+import de.flapdoodle.embed.mongo.distribution.Versions;
+import de.flapdoodle.embed.process.distribution.GenericVersion;
+import de.flapdoodle.embed.process.runtime.Network;
+import org.bson.Document;
+import org.junit.Assume;
+import org.junit.rules.ExternalResource;
+import org.springframework.data.mongodb.core.MongoTemplate;
+
+import java.util.Collections;
+
+/**
+ * A mongod started for a test class, as a single node replica set so change streams work.
+ * The mongod binary is downloaded on first use; the tests are skipped when it can not be started.
+ */
+class EmbeddedMongo extends ExternalResource {
+
+    private static final String VERSION = "3.6.23";
+    private static final String REPLICA_SET = "rs0";
+    private static final long PRIMARY_TIMEOUT = 30000;
+
+    private MongodExecutable mongod;
+    private MongoClient client;
+    private MongoTemplate mongoTemplate;
+
+    @Override
+    protected void before() throws Throwable {
+        int port = Network.getFreeServerPort();
+        try {
+            mongod = MongodStarter.getDefaultInstance().prepare(new MongodConfigBuilder()
+                    .version(Versions.withFeatures(new GenericVersion(VERSION)))
+                    .net(new Net(port, Network.localhostIsIPv6()))
+                    .replication(new Storage(null, REPLICA_SET, 0))
+                    .cmdOptions(new MongoCmdOptionsBuilder().useNoPrealloc(false).useSmallFiles(false)
+                            .useNoJournal(false).build())
+                    .build());
+            mongod.start();
+        } catch (Exception e) {
+            Assume.assumeNoException("mongod " + VERSION + " could not be started", e);
+        }
+        client = new MongoClient("localhost", port);
+        client.getDatabase("admin").runCommand(new Document("replSetInitiate", new Document("_id", REPLICA_SET)
+                .append("members", Collections.singletonList(
+                        new Document("_id", 0).append("host", "localhost:" + port)))));
+        awaitPrimary();
+        mongoTemplate = new MongoTemplate(client, "dashboarddb");
+    }
+
+    @Override
+    protected void after() {
+        if (client != null) {
+            client.close();
+        }
+        if (mongod != null) {
+            mongod.stop();
+        }
+    }
+
+    MongoTemplate getMongoTemplate() {
+        return mongoTemplate;
+    }
+
+    private void awaitPrimary() throws InterruptedException {
+        long deadline = System.currentTimeMillis() + PRIMARY_TIMEOUT;
+        while (System.currentTimeMillis() < deadline) {
+            Document isMaster = client.getDatabase("admin").runCommand(new Document("isMaster", 1));
+            if (Boolean.TRUE.equals(isMaster.get("ismaster"))) {
+                return;
+            }
+            Thread.sleep(100);
+        }
+        throw new IllegalStateException("replica set " + REPLICA_SET + " has no primary");
+    }
+}
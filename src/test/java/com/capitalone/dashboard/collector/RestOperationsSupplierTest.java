@@ -0,0 +1,66 @@
+package com.capitalone.dashboard.collector;
+
+import org.apache.http.HttpHost;
+import org.apache.http.conn.routing.HttpRoute;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class RestOperationsSupplierTest {
+
+    private static final HttpRoute ROUTE = new HttpRoute(new HttpHost("teamcity.example.com", 443, "https"), null, true);
+
+    private TeamcitySettings settings;
+    private RestOperationsSupplier supplier;
+    private PoolingHttpClientConnectionManager connectionManager;
+
+    @Before
+    public void init() {
+        settings = new TeamcitySettings();
+        settings.setMaxConnectionsPerRoute(10);
+        supplier = new RestOperationsSupplier();
+        supplier.settings = settings;
+        connectionManager = new PoolingHttpClientConnectionManager();
+        connectionManager.setDefaultMaxPerRoute(settings.getMaxConnectionsPerRoute());
+    }
+
+    @Test
+    public void serverLimitAddedAfterThePoolWasBuiltApplies() {
+        supplier.limitRoute(connectionManager, ROUTE);
+        assertEquals(10, connectionManager.getMaxPerRoute(ROUTE));
+
+        settings.getServerLimits().add(serverLimit("https://teamcity.example.com", 3));
+        supplier.limitRoute(connectionManager, ROUTE);
+        assertEquals(3, connectionManager.getMaxPerRoute(ROUTE));
+    }
+
+    @Test
+    public void serverLimitIsMatchedByHostAndPort() {
+        settings.getServerLimits().add(serverLimit("https://teamcity.example.com:8443", 3));
+        settings.getServerLimits().add(serverLimit("https://teamcity.example.com:443/", 4));
+        supplier.limitRoute(connectionManager, ROUTE);
+        assertEquals(4, connectionManager.getMaxPerRoute(ROUTE));
+
+        HttpRoute other = new HttpRoute(new HttpHost("other.example.com", 80, "http"));
+        supplier.limitRoute(connectionManager, other);
+        assertEquals(10, connectionManager.getMaxPerRoute(other));
+    }
+
+    @Test
+    public void removedServerLimitFallsBackToTheDefault() {
+        settings.getServerLimits().add(serverLimit("https://teamcity.example.com", 3));
+        supplier.limitRoute(connectionManager, ROUTE);
+        settings.getServerLimits().clear();
+        supplier.limitRoute(connectionManager, ROUTE);
+        assertEquals(10, connectionManager.getMaxPerRoute(ROUTE));
+    }
+
+    private static TeamcitySettings.ServerLimit serverLimit(String url, int maxConnections) {
+        TeamcitySettings.ServerLimit serverLimit = new TeamcitySettings.ServerLimit();
+        serverLimit.setUrl(url);
+        serverLimit.setMaxConnections(maxConnections);
+        return serverLimit;
+    }
+}
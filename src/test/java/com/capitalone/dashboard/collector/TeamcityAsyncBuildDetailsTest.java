@@ -0,0 +1,113 @@
+package com.capitalone.dashboard.collector;
+
+import com.capitalone.dashboard.model.Build;
+import com.sun.net.httpserver.HttpServer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPOutputStream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Build details fetched on the non-blocking client against a local server, through the
+ * compression, transfer stats and parsers of the blocking client.
+ */
+public class TeamcityAsyncBuildDetailsTest {
+
+    private static final String BUILD = "{\"id\": 1047, \"number\": \"2.4.1-rc1\", \"state\": \"finished\","
+            + " \"status\": \"SUCCESS\", \"startDate\": \"20170102T030405+0000\", \"finishDate\": \"20170102T031020+0000\"}";
+
+    private HttpServer server;
+    private String instanceUrl;
+    private final List<String> acceptEncodings = new CopyOnWriteArrayList<>();
+    private TeamcitySettings settings;
+    private TeamcityTransferStats transferStats;
+    private HttpAsyncClientSupplier asyncClientSupplier;
+    private DefaultTeamcityClient client;
+
+    @Before
+    public void init() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.createContext("/app/rest/builds/id:1047", exchange -> {
+            acceptEncodings.add(exchange.getRequestHeaders().getFirst("Accept-Encoding"));
+            ByteArrayOutputStream body = new ByteArrayOutputStream();
+            try (OutputStream gzip = new GZIPOutputStream(body)) {
+                gzip.write(BUILD.getBytes(StandardCharsets.UTF_8));
+            }
+            exchange.getResponseHeaders().add("Content-Type", "application/json");
+            exchange.getResponseHeaders().add("Content-Encoding", "gzip");
+            exchange.sendResponseHeaders(200, body.size());
+            try (OutputStream out = exchange.getResponseBody()) {
+                body.writeTo(out);
+            }
+        });
+        server.createContext("/app/rest/builds/id:404", exchange -> {
+            exchange.sendResponseHeaders(404, -1);
+            exchange.close();
+        });
+        server.start();
+        instanceUrl = "http://localhost:" + server.getAddress().getPort();
+
+        settings = new TeamcitySettings();
+        settings.setRequestRate(0);
+        settings.setMaxConcurrency(2);
+        settings.setMaxConnections(4);
+        settings.setMaxConnectionsPerRoute(2);
+        settings.setConnectTimeout(5000);
+        settings.setReadTimeout(5000);
+        settings.setConnectionRequestTimeout(5000);
+        settings.setKeepAlive(5000);
+        settings.setIdleConnectionTimeout(5000);
+        transferStats = new TeamcityTransferStats();
+        RestOperationsSupplier restOperationsSupplier = new RestOperationsSupplier();
+        restOperationsSupplier.settings = settings;
+        restOperationsSupplier.transferStats = transferStats;
+        asyncClientSupplier = new HttpAsyncClientSupplier();
+        asyncClientSupplier.settings = settings;
+        asyncClientSupplier.restOperationsSupplier = restOperationsSupplier;
+        client = new DefaultTeamcityClient(restOperationsSupplier, asyncClientSupplier, settings,
+                new TeamcityResponseCache(settings), new TeamcityRequestGovernor(settings), new TeamcityCredentials(settings));
+    }
+
+    @After
+    public void close() throws IOException {
+        asyncClientSupplier.close();
+        server.stop(0);
+    }
+
+    @Test
+    public void compressedDetailsAreDecodedAndCounted() throws Exception {
+        assertBuild(false);
+        assertBuild(true);
+
+        assertEquals("gzip,deflate", acceptEncodings.get(0));
+        long[] bytes = transferStats.drain(instanceUrl);
+        assertEquals(2 * BUILD.length(), bytes[1]);
+        assertTrue("wire bytes " + bytes[0], bytes[0] > 0 && bytes[0] != bytes[1]);
+    }
+
+    @Test
+    public void failedRequestCompletesWithNull() throws Exception {
+        assertNull(client.getBuildDetailsAsync(instanceUrl + "/app/rest/builds/id:404", instanceUrl).get(5, TimeUnit.SECONDS));
+    }
+
+    private void assertBuild(boolean streaming) throws Exception {
+        settings.setStreamingParser(streaming);
+        String buildUrl = instanceUrl + "/app/rest/builds/id:1047";
+        Build build = client.getBuildDetailsAsync(buildUrl, instanceUrl).get(5, TimeUnit.SECONDS);
+        assertEquals("2.4.1-rc1", build.getNumber());
+        assertEquals(buildUrl, build.getBuildUrl());
+    }
+}
@@ -0,0 +1,157 @@
+package com.capitalone.dashboard.collector;
+
+import com.capitalone.dashboard.model.Build;
+import com.capitalone.dashboard.model.TeamcityProject;
+import com.capitalone.dashboard.repository.TeamcityJobRepository;
+import org.bson.types.ObjectId;
+import org.junit.Before;
+import org.junit.ClassRule;
+import org.junit.Test;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.web.client.RestClientException;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * The migration removes the duplicate builds of each job, renumbers the builds saved with their
+ * id as their number, and keeps going when a job fails.
+ */
+public class TeamcityBuildKeyMigrationTest {
+
+    @ClassRule
+    public static final EmbeddedMongo MONGO = new EmbeddedMongo();
+
+    private static final String BUILDS = "http://teamcity:8111/app/rest/builds/id:";
+
+    private MongoTemplate mongoTemplate;
+    private TeamcityJobRepository teamcityJobRepository;
+    private TeamcityClient teamcityClient;
+    private TeamcityBuildKeyMigration migration;
+
+    @Before
+    public void init() {
+        mongoTemplate = MONGO.getMongoTemplate();
+        mongoTemplate.dropCollection(Build.class);
+        teamcityJobRepository = mock(TeamcityJobRepository.class);
+        teamcityClient = mock(TeamcityClient.class);
+        migration = new TeamcityBuildKeyMigration(mongoTemplate, teamcityJobRepository, teamcityClient);
+    }
+
+    @Test
+    public void firstSavedCopyOfEachBuildIsKept() {
+        TeamcityProject job = job("Hygieia");
+        TeamcityProject other = job("Other");
+        other.setBuildKey(TeamcityBuildKeyMigration.BUILD_URL_KEY);
+        // more duplicates than are removed at once
+        for (int id = 1; id <= 1200; id++) {
+            save(job, id, "1." + id, 2000 + id);
+            save(job, id, "1." + id, 1000 + id);
+        }
+        save(job, 1201, "1.1201", 1);
+        save(other, 1, "1.1", 1);
+        save(other, 1, "1.1", 2);
+
+        migration.migrate(Arrays.asList(job, other));
+
+        List<Build> builds = builds(job);
+        assertEquals(1201, builds.size());
+        assertEquals(1001, builds.get(0).getTimestamp());
+        assertEquals(2, builds(other).size());
+        assertEquals(TeamcityBuildKeyMigration.BUILD_URL_KEY, job.getBuildKey());
+        verify(teamcityJobRepository).save(job);
+        verify(teamcityJobRepository, never()).save(other);
+        verify(teamcityClient, never()).getBuildNumbers(any(TeamcityProject.class));
+    }
+
+    @Test
+    public void buildsNumberedByIdAreRenumbered() {
+        TeamcityProject job = job("Hygieia");
+        save(job, 1, "1", 1);
+        save(job, 2, "2", 2);
+        save(job, 3, "1.3", 3);
+        save(job, 4, "4", 4);
+        Map<String, String> numbers = new HashMap<>();
+        numbers.put(BUILDS + 1, "1.1");
+        numbers.put(BUILDS + 2, "2");
+        numbers.put(BUILDS + 3, "1.3");
+        when(teamcityClient.getBuildNumbers(job)).thenReturn(numbers);
+
+        migration.migrate(Arrays.asList(job));
+
+        List<String> buildNumbers = new ArrayList<>();
+        for (Build build : builds(job)) {
+            buildNumbers.add(build.getNumber());
+        }
+        // build 2 has no number of its own, build 4 is no longer listed
+        assertEquals(Arrays.asList("1.1", "2", "1.3", "4"), buildNumbers);
+        assertEquals(TeamcityBuildKeyMigration.BUILD_URL_KEY, job.getBuildKey());
+    }
+
+    @Test
+    public void unreachableServerLeavesItsJobsForTheNextRun() {
+        TeamcityProject first = job("first");
+        TeamcityProject second = job("second");
+        save(first, 1, "1", 1);
+        save(second, 2, "2", 2);
+        when(teamcityClient.getBuildNumbers(any(TeamcityProject.class))).thenThrow(new RestClientException("refused"));
+
+        migration.migrate(Arrays.asList(first, second));
+
+        assertNull(first.getBuildKey());
+        assertNull(second.getBuildKey());
+        verify(teamcityClient).getBuildNumbers(first);
+        verify(teamcityJobRepository, never()).save(any(TeamcityProject.class));
+    }
+
+    @Test
+    public void failedJobDoesNotStopTheOthers() {
+        TeamcityProject failing = job("failing");
+        TeamcityProject next = job("next");
+        when(teamcityJobRepository.save(failing)).thenThrow(new IllegalStateException("write failed"));
+
+        migration.migrate(Arrays.asList(failing, next));
+
+        verify(teamcityJobRepository).save(next);
+        assertEquals(TeamcityBuildKeyMigration.BUILD_URL_KEY, next.getBuildKey());
+    }
+
+    private static TeamcityProject job(String name) {
+        TeamcityProject job = new TeamcityProject();
+        job.setId(new ObjectId());
+        job.setJobName(name);
+        job.setInstanceUrl("http://teamcity:8111");
+        job.setJobUrl("http://teamcity:8111/app/rest/projects/id:" + name);
+        job.setProjectId(name);
+        return job;
+    }
+
+    private void save(TeamcityProject job, int id, String number, long timestamp) {
+        Build build = new Build();
+        build.setCollectorItemId(job.getId());
+        build.setBuildUrl(BUILDS + id);
+        build.setNumber(number);
+        build.setTimestamp(timestamp);
+        mongoTemplate.insert(build);
+    }
+
+    private List<Build> builds(TeamcityProject job) {
+        List<Build> builds = mongoTemplate.find(new Query(Criteria.where("collectorItemId").is(job.getId())), Build.class);
+        builds.sort((a, b) -> Long.compare(DefaultTeamcityClient.buildId(a.getBuildUrl()),
+                DefaultTeamcityClient.buildId(b.getBuildUrl())));
+        return builds;
+    }
+}
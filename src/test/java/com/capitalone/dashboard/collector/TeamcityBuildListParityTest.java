@@ -0,0 +1,166 @@
+package com.capitalone.dashboard.collector;
+
+import com.capitalone.dashboard.model.Build;
+import com.capitalone.dashboard.model.BuildStatus;
+import com.capitalone.dashboard.model.RepoBranch;
+import com.capitalone.dashboard.model.SCM;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.List;
+
+import static com.capitalone.dashboard.collector.TeamcityClientFixture.ALL_BUILDS_URL;
+import static com.capitalone.dashboard.collector.TeamcityClientFixture.PAGE_URL;
+import static com.capitalone.dashboard.collector.TeamcityClientFixture.builds;
+import static com.capitalone.dashboard.collector.TeamcityClientFixture.getJson;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+
+/**
+ * The JSON-simple and the streaming parser read the same build list responses into the same builds.
+ */
+public class TeamcityBuildListParityTest {
+
+    private TeamcityClientFixture fixture;
+    private TeamcitySettings settings;
+    private DefaultTeamcityClient client;
+
+    @Before
+    public void init() {
+        fixture = new TeamcityClientFixture();
+        settings = fixture.getSettings();
+        client = fixture.newClient();
+    }
+
+    @Test
+    public void summariesAreTheSame() throws Exception {
+        List<Build> builds = assertSameBuilds("buildList_firstPage.json", false);
+
+        assertEquals(3, builds.size());
+        Build first = builds.get(0);
+        assertEquals("2.4.1-rc1", first.getNumber());
+        assertEquals(ALL_BUILDS_URL + "/id:1047", first.getBuildUrl());
+        assertEquals(BuildStatus.Success, first.getBuildStatus());
+        assertEquals(DefaultTeamcityClient.getTimeInMillis("20170102T031020+0000"), first.getEndTime());
+        assertEquals(0, first.getStartTime());
+        assertEquals(0, first.getTimestamp());
+        assertEquals("1046", builds.get(1).getNumber());
+    }
+
+    @Test
+    public void hydratedBuildsAreTheSame() throws Exception {
+        List<Build> builds = assertSameBuilds("buildList_firstPage.json", true);
+
+        Build first = builds.get(0);
+        assertEquals(DefaultTeamcityClient.getTimeInMillis("20170102T030405+0000"), first.getStartTime());
+        assertEquals(1, first.getCodeRepos().size());
+        RepoBranch repo = first.getCodeRepos().get(0);
+        assertEquals("https://github.com/capitalone/Hygieia", repo.getUrl());
+        assertEquals("master", repo.getBranch());
+        assertEquals(RepoBranch.RepoType.GIT, repo.getType());
+        assertEquals(2, first.getSourceChangeSet().size());
+        SCM change = first.getSourceChangeSet().get(0);
+        assertEquals("8f3c2a1d", change.getScmRevisionNumber());
+        assertEquals("jdoe", change.getScmAuthor());
+        assertEquals("Fix the build list cursor\n\nKeeps builds that finish late.", change.getScmCommitLog());
+        assertEquals("https://github.com/capitalone/Hygieia", change.getScmUrl());
+        assertEquals("master", change.getScmBranch());
+
+        assertEquals(0, builds.get(1).getCodeRepos().size());
+        assertEquals(0, builds.get(1).getSourceChangeSet().size());
+
+        Build third = builds.get(2);
+        assertEquals(2, third.getCodeRepos().size());
+        assertEquals(RepoBranch.RepoType.SVN, third.getCodeRepos().get(0).getType());
+        assertEquals("trunk", third.getCodeRepos().get(0).getBranch());
+        assertEquals("", third.getCodeRepos().get(1).getBranch());
+        // built from two repos, so the change is not associated with either
+        assertNull(third.getSourceChangeSet().get(0).getScmUrl());
+        assertNull(third.getSourceChangeSet().get(0).getScmCommitLog());
+    }
+
+    @Test
+    public void missingFieldsAreReadTheSame() throws Exception {
+        for (boolean hydrate : new boolean[]{false, true}) {
+            List<Build> builds = assertSameBuilds("buildList_lastPage.json", hydrate);
+
+            // without a start date the build stays a summary, its details are fetched separately
+            assertEquals(0, builds.get(0).getTimestamp());
+            assertEquals(BuildStatus.Unknown, builds.get(1).getBuildStatus());
+            assertEquals(0, builds.get(1).getSourceChangeSet().size());
+        }
+    }
+
+    @Test
+    public void unfinishedBuildIsNotRead() throws Exception {
+        fixture.setResponse(getJson("buildList_firstPage.json").replaceFirst("\"state\": \"finished\"", "\"state\": \"running\""));
+        List<Build> simple = builds(page(false, true));
+        List<Build> streamed = builds(page(true, true));
+        assertEquals(describe(simple), describe(streamed));
+        // the running build stays a summary, the others are fully read
+        assertEquals(0, simple.get(0).getTimestamp());
+        assertEquals(0, simple.get(0).getStartTime());
+        assertNotEquals(0, simple.get(1).getTimestamp());
+
+        fixture.setResponse("{\"id\": 1047, \"number\": \"2.4.1-rc1\", \"state\": \"running\","
+                + " \"status\": \"SUCCESS\", \"startDate\": \"20170102T030405+0000\", \"finishDate\": \"20170102T031020+0000\"}");
+        for (boolean streaming : new boolean[]{false, true}) {
+            settings.setStreamingParser(streaming);
+            assertNull(client.getBuildDetails(ALL_BUILDS_URL + "/id:1047", "http://teamcity.example.com"));
+        }
+    }
+
+    @Test
+    public void emptyResponseHasNoBuilds() throws Exception {
+        assertEquals(0, assertSameBuilds("buildList_empty.json", false).size());
+    }
+
+    @Test
+    public void nextHrefIsTheSame() throws Exception {
+        fixture.setResponse(getJson("buildList_firstPage.json"));
+        assertEquals("/app/rest/builds?locator=project:Hygieia,count:3,start:3", page(false, false).getNextHref());
+        assertEquals(page(false, false).getNextHref(), page(true, false).getNextHref());
+
+        fixture.setResponse(getJson("buildList_lastPage.json"));
+        assertNull(page(false, false).getNextHref());
+        assertNull(page(true, false).getNextHref());
+    }
+
+    // parses the response with both parsers, and checks they read every field the same
+    private List<Build> assertSameBuilds(String fileName, boolean hydrate) throws Exception {
+        fixture.setResponse(getJson(fileName));
+        List<Build> simple = builds(page(false, hydrate));
+        List<Build> streamed = builds(page(true, hydrate));
+        assertEquals(describe(simple), describe(streamed));
+        return simple;
+    }
+
+    private TeamcityBuildPage page(boolean streaming, boolean hydrate) throws Exception {
+        settings.setStreamingParser(streaming);
+        settings.setHydrateInList(hydrate);
+        return client.getBuildPage(PAGE_URL, ALL_BUILDS_URL, false);
+    }
+
+    // every mapped field, except the time the build was read at
+    private static String describe(List<Build> builds) {
+        StringBuilder description = new StringBuilder();
+        for (Build build : builds) {
+            description.append(build.getNumber()).append('|').append(build.getBuildUrl())
+                    .append('|').append(build.getBuildStatus())
+                    .append('|').append(build.getStartTime()).append('|').append(build.getEndTime())
+                    .append('|').append(build.getDuration()).append('|').append(build.getTimestamp() != 0)
+                    .append('\n');
+            for (RepoBranch repo : build.getCodeRepos()) {
+                description.append("  repo ").append(repo.getUrl()).append('|').append(repo.getBranch())
+                        .append('|').append(repo.getType()).append('\n');
+            }
+            for (SCM scm : build.getSourceChangeSet()) {
+                description.append("  change ").append(scm.getScmRevisionNumber()).append('|').append(scm.getScmAuthor())
+                        .append('|').append(scm.getScmCommitLog()).append('|').append(scm.getScmCommitTimestamp())
+                        .append('|').append(scm.getScmUrl()).append('|').append(scm.getScmBranch()).append('\n');
+            }
+        }
+        return description.toString();
+    }
+}
@@ -0,0 +1,207 @@
+package com.capitalone.dashboard.collector;
+
+import com.capitalone.dashboard.model.BaseModel;
+import com.capitalone.dashboard.model.Build;
+import com.capitalone.dashboard.model.TeamcityCollector;
+import com.capitalone.dashboard.model.TeamcityProject;
+import com.capitalone.dashboard.repository.CollItemConfigHistoryRepository;
+import com.capitalone.dashboard.repository.TeamcityCollectorRepository;
+import com.capitalone.dashboard.repository.TeamcityJobRepository;
+import org.bson.types.ObjectId;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.runners.MockitoJUnitRunner;
+import org.springframework.scheduling.TaskScheduler;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.function.BiConsumer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyCollectionOf;
+import static org.mockito.Matchers.anyListOf;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * Several jobs collected through several persist lanes, with their build details prefetched out
+ * of order: the builds of each job are still written in build id order, and a job's cursor is
+ * only saved once the builds it moves past are written.
+ */
+@RunWith(MockitoJUnitRunner.class)
+public class TeamcityBuildOrderingTest {
+
+    private static final String SERVER = "http://teamcity:8111";
+    private static final String BUILDS = SERVER + "/app/rest/builds/id:";
+    private static final int JOBS = 6;
+    private static final int BUILDS_PER_JOB = 9;
+
+    @Mock private TeamcityJobRepository teamcityJobRepository;
+    @Mock private TeamcityClient teamcityClient;
+    @Mock private TeamcityBuildStore buildStore;
+    @Mock private TeamcityDashboardItems dashboardItems;
+
+    private final List<String> events = Collections.synchronizedList(new ArrayList<>());
+    private final Set<String> writerThreads = Collections.synchronizedSet(new HashSet<>());
+    private final Random random = new Random(7);
+    private final List<TeamcityProject> jobs = new ArrayList<>();
+    private final Map<String, TeamcityProject> jobsByBuild = new HashMap<>();
+    private TeamcityCollector collector;
+    private TeamcityCollectorTask task;
+
+    @Before
+    @SuppressWarnings("unchecked")
+    public void init() {
+        TeamcitySettings settings = new TeamcitySettings();
+        settings.setInstanceTimeout(60000);
+        settings.setFetchThreads(3);
+        settings.setPersistThreads(3);
+        settings.setStageQueueSize(2);
+        settings.setDetailPrefetch(4);
+        settings.setBuildBatchSize(2);
+        settings.setBuildFlushInterval(Long.MAX_VALUE);
+
+        collector = TeamcityCollector.prototype(Collections.singletonList(SERVER), null, null);
+        collector.setId(new ObjectId());
+        Set<ObjectId> jobIds = new HashSet<>();
+        for (int i = 0; i < JOBS; i++) {
+            TeamcityProject job = new TeamcityProject();
+            job.setId(new ObjectId());
+            job.setCollectorId(collector.getId());
+            job.setEnabled(true);
+            job.setJobName("job" + i);
+            job.setJobUrl(SERVER + "/app/rest/projects/id:job" + i);
+            job.setInstanceUrl(SERVER);
+            job.setBuildKey(TeamcityBuildKeyMigration.BUILD_URL_KEY);
+            jobs.add(job);
+            jobIds.add(job.getId());
+        }
+
+        when(teamcityJobRepository.findByCollectorIdIn(Collections.singleton(collector.getId()))).thenReturn(jobs);
+        when(teamcityJobRepository.findEnabledJobs(collector.getId(), SERVER)).thenReturn(jobs);
+        when(dashboardItems.findEnabledItemIds(collector.getId())).thenReturn(jobIds);
+        when(teamcityClient.discoverProjects(SERVER)).thenReturn(new LinkedHashSet<>(jobs));
+        doAnswer(invocation -> {
+            BiConsumer<TeamcityProject, Map<TeamcityClient.jobData, Set<BaseModel>>> visitor =
+                    (BiConsumer<TeamcityProject, Map<TeamcityClient.jobData, Set<BaseModel>>>) invocation.getArguments()[1];
+            for (TeamcityProject job : (List<TeamcityProject>) invocation.getArguments()[0]) {
+                visitor.accept(job, jobData(job));
+            }
+            return null;
+        }).when(teamcityClient).visitProjectData(anyListOf(TeamcityProject.class), any(BiConsumer.class));
+        // the details of a job's builds complete in a different order than they were requested in
+        when(teamcityClient.getBuildDetails(anyString(), eq(SERVER))).thenAnswer(invocation -> {
+            String buildUrl = (String) invocation.getArguments()[0];
+            Thread.sleep(nextDelay());
+            Build build = new Build();
+            build.setBuildUrl(buildUrl);
+            build.setNumber(buildUrl.substring(BUILDS.length()));
+            build.setTimestamp(System.currentTimeMillis());
+            build.setEndTime(finishTime(DefaultTeamcityClient.buildId(buildUrl)));
+            return build;
+        });
+        when(buildStore.findExistingBuildUrls(any(ObjectId.class), anyCollectionOf(String.class)))
+                .thenReturn(Collections.emptySet());
+        doAnswer(invocation -> {
+            writerThreads.add(Thread.currentThread().getName());
+            for (Build build : (List<Build>) invocation.getArguments()[0]) {
+                events.add("build " + jobsByBuild.get(build.getBuildUrl()).getJobName() + " "
+                        + DefaultTeamcityClient.buildId(build.getBuildUrl()));
+            }
+            return null;
+        }).when(buildStore).insert(anyListOf(Build.class));
+        when(teamcityJobRepository.save(anyListOf(TeamcityProject.class))).thenAnswer(invocation -> {
+            for (TeamcityProject job : (Iterable<TeamcityProject>) invocation.getArguments()[0]) {
+                events.add("cursor " + job.getJobName() + " " + job.getLastFinishTime());
+            }
+            return invocation.getArguments()[0];
+        });
+
+        // the configuration repository is only read by getCollector
+        task = new TeamcityCollectorTask(mock(TaskScheduler.class), mock(TeamcityCollectorRepository.class),
+                teamcityJobRepository, mock(CollItemConfigHistoryRepository.class), teamcityClient, settings,
+                null, mock(TeamcityBuildKeyMigration.class), new TeamcityTransferStats(),
+                mock(TeamcityResponseCache.class), mock(TeamcityCredentials.class), mock(TeamcityRequestGovernor.class),
+                buildStore, dashboardItems, mock(TeamcityDashboardWatcher.class));
+    }
+
+    @Test
+    public void buildsAreWrittenInOrderAndCursorsAfterThem() {
+        task.collect(collector);
+        task.shutdown();
+
+        Map<String, List<Long>> written = new HashMap<>();
+        Map<String, Long> cursors = new HashMap<>();
+        for (String event : new ArrayList<>(events)) {
+            String[] fields = event.split(" ");
+            List<Long> builds = written.computeIfAbsent(fields[1], name -> new ArrayList<>());
+            long value = Long.parseLong(fields[2]);
+            if ("build".equals(fields[0])) {
+                assertTrue("build " + value + " of " + fields[1] + " written after " + builds,
+                        builds.isEmpty() || builds.get(builds.size() - 1) < value);
+                builds.add(value);
+            } else {
+                // the cursor never moves past a build that is not written yet
+                long lastWritten = builds.isEmpty() ? 0 : finishTime(builds.get(builds.size() - 1));
+                assertTrue("cursor of " + fields[1] + " at " + value + " before its builds up to " + lastWritten,
+                        value <= lastWritten);
+                cursors.put(fields[1], value);
+            }
+        }
+        assertTrue("written on " + writerThreads, writerThreads.size() > 1);
+        for (TeamcityProject job : jobs) {
+            assertEquals(BUILDS_PER_JOB, written.get(job.getJobName()).size());
+            assertEquals(finishTime(buildIds(job).get(BUILDS_PER_JOB - 1)), (long) cursors.get(job.getJobName()));
+        }
+    }
+
+    // the summaries of the job's builds, listed out of build id order
+    private Map<TeamcityClient.jobData, Set<BaseModel>> jobData(TeamcityProject job) {
+        List<Long> ids = buildIds(job);
+        Collections.shuffle(ids, random);
+        Set<BaseModel> builds = new LinkedHashSet<>();
+        for (long id : ids) {
+            Build summary = new Build();
+            summary.setBuildUrl(BUILDS + id);
+            summary.setNumber(String.valueOf(id));
+            summary.setEndTime(finishTime(id));
+            builds.add(summary);
+            jobsByBuild.put(summary.getBuildUrl(), job);
+        }
+        Map<TeamcityClient.jobData, Set<BaseModel>> jobData = new EnumMap<>(TeamcityClient.jobData.class);
+        jobData.put(TeamcityClient.jobData.BUILD, builds);
+        return jobData;
+    }
+
+    private List<Long> buildIds(TeamcityProject job) {
+        int index = jobs.indexOf(job);
+        List<Long> ids = new ArrayList<>();
+        for (int i = 0; i < BUILDS_PER_JOB; i++) {
+            ids.add(1000L + i * JOBS + index);
+        }
+        return ids;
+    }
+
+    private static long finishTime(long buildId) {
+        return buildId * 1000;
+    }
+
+    private synchronized long nextDelay() {
+        return random.nextInt(15);
+    }
+}
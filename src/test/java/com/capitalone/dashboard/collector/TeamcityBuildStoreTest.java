@@ -0,0 +1,189 @@
+package com.capitalone.dashboard.collector;
+
+import com.capitalone.dashboard.model.Build;
+import com.mongodb.BasicDBObject;
+import com.mongodb.BulkWriteError;
+import com.mongodb.BulkWriteException;
+import com.mongodb.BulkWriteOperation;
+import com.mongodb.DBCollection;
+import com.mongodb.DBObject;
+import org.bson.types.ObjectId;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+import org.mockito.runners.MockitoJUnitRunner;
+import org.springframework.context.ApplicationEvent;
+import org.springframework.context.ApplicationEventPublisher;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.convert.MongoConverter;
+import org.springframework.data.mongodb.core.mapping.event.AfterSaveEvent;
+import org.springframework.data.mongodb.core.query.Query;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.atLeastOnce;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+@RunWith(MockitoJUnitRunner.class)
+public class TeamcityBuildStoreTest {
+
+    @Mock private MongoTemplate mongoTemplate;
+    @Mock private MongoConverter converter;
+    @Mock private DBCollection collection;
+    @Mock private BulkWriteOperation bulk;
+    @Mock private ApplicationEventPublisher eventPublisher;
+
+    private TeamcityBuildStore buildStore;
+
+    @Before
+    public void init() {
+        when(mongoTemplate.getCollectionName(Build.class)).thenReturn("builds");
+        when(mongoTemplate.getCollection("builds")).thenReturn(collection);
+        when(mongoTemplate.getConverter()).thenReturn(converter);
+        when(collection.initializeUnorderedBulkOperation()).thenReturn(bulk);
+        doAnswer(invocation -> {
+            Build build = (Build) invocation.getArguments()[0];
+            DBObject document = (DBObject) invocation.getArguments()[1];
+            document.put("_id", build.getId());
+            document.put("buildUrl", build.getBuildUrl());
+            return null;
+        }).when(converter).write(any(), any(DBObject.class));
+        buildStore = new TeamcityBuildStore(mongoTemplate, eventPublisher);
+    }
+
+    @Test
+    public void buildsAreInsertedInOneUnorderedBatch() {
+        List<Build> builds = builds(3);
+        buildStore.insert(builds);
+
+        ArgumentCaptor<DBObject> documents = ArgumentCaptor.forClass(DBObject.class);
+        verify(bulk, times(3)).insert(documents.capture());
+        verify(bulk).execute();
+        for (int i = 0; i < builds.size(); i++) {
+            assertNotNull(builds.get(i).getId());
+            assertEquals(builds.get(i).getId(), documents.getAllValues().get(i).get("_id"));
+        }
+        assertEquals(builds, savedBuilds());
+    }
+
+    @Test
+    public void emptyBatchIsNotWritten() {
+        buildStore.insert(Collections.<Build>emptyList());
+        verify(collection, never()).initializeUnorderedBulkOperation();
+    }
+
+    @Test
+    public void storedBuildsDoNotFailTheBatch() {
+        List<Build> builds = builds(3);
+        BulkWriteException duplicate = bulkWriteException(new BulkWriteError(11000, "duplicate key", new BasicDBObject(), 1));
+        when(bulk.execute()).thenThrow(duplicate);
+
+        buildStore.insert(builds);
+
+        assertEquals(Arrays.asList(builds.get(0), builds.get(2)), savedBuilds());
+    }
+
+    @Test
+    public void otherFailuresAreThrownOnceTheWrittenBuildsArePublished() {
+        List<Build> builds = builds(3);
+        BulkWriteException failure = bulkWriteException(new BulkWriteError(11000, "duplicate key", new BasicDBObject(), 0),
+                new BulkWriteError(2, "bad value", new BasicDBObject(), 2));
+        when(bulk.execute()).thenThrow(failure);
+
+        try {
+            buildStore.insert(builds);
+            fail("failure was not thrown");
+        } catch (BulkWriteException bwe) {
+            assertSame(failure, bwe);
+        }
+        assertEquals(Collections.singletonList(builds.get(1)), savedBuilds());
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void existingBuildsAreLookedUpInBatches() {
+        ObjectId collectorItemId = new ObjectId();
+        List<String> buildUrls = new ArrayList<>();
+        for (Build build : builds(2500)) {
+            buildUrls.add(build.getBuildUrl());
+        }
+        // every other build is stored already
+        when(mongoTemplate.find(any(Query.class), eq(Build.class))).thenAnswer(invocation -> {
+            DBObject buildUrl = (DBObject) ((Query) invocation.getArguments()[0]).getQueryObject().get("buildUrl");
+            List<Build> stored = new ArrayList<>();
+            for (String url : (Collection<String>) buildUrl.get("$in")) {
+                if (buildUrls.indexOf(url) % 2 == 0) {
+                    Build build = new Build();
+                    build.setBuildUrl(url);
+                    stored.add(build);
+                }
+            }
+            return stored;
+        });
+
+        Set<String> existing = buildStore.findExistingBuildUrls(collectorItemId, buildUrls);
+
+        ArgumentCaptor<Query> queries = ArgumentCaptor.forClass(Query.class);
+        verify(mongoTemplate, times(3)).find(queries.capture(), eq(Build.class));
+        List<String> queried = new ArrayList<>();
+        for (Query query : queries.getAllValues()) {
+            assertEquals(collectorItemId, query.getQueryObject().get("collectorItemId"));
+            Collection<String> batch = (Collection<String>) ((DBObject) query.getQueryObject().get("buildUrl")).get("$in");
+            assertTrue(batch.size() <= 1000);
+            queried.addAll(batch);
+        }
+        assertEquals(buildUrls, queried);
+        assertEquals(1250, existing.size());
+        assertTrue(existing.contains(buildUrls.get(2498)));
+        assertFalse(existing.contains(buildUrls.get(2499)));
+    }
+
+    private static List<Build> builds(int count) {
+        List<Build> builds = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            Build build = new Build();
+            build.setBuildUrl("http://teamcity:8111/app/rest/builds/id:" + i);
+            builds.add(build);
+        }
+        return builds;
+    }
+
+    private static BulkWriteException bulkWriteException(BulkWriteError... errors) {
+        BulkWriteException bwe = mock(BulkWriteException.class);
+        when(bwe.getWriteErrors()).thenReturn(Arrays.asList(errors));
+        return bwe;
+    }
+
+    // the builds the after save listeners were told about, in order
+    private List<Build> savedBuilds() {
+        ArgumentCaptor<ApplicationEvent> events = ArgumentCaptor.forClass(ApplicationEvent.class);
+        verify(eventPublisher, atLeastOnce()).publishEvent(events.capture());
+        List<Build> saved = new ArrayList<>();
+        for (ApplicationEvent event : events.getAllValues()) {
+            if (event instanceof AfterSaveEvent) {
+                saved.add((Build) event.getSource());
+            }
+        }
+        return saved;
+    }
+}
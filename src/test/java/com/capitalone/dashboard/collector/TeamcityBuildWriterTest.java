@@ -0,0 +1,172 @@
+package com.capitalone.dashboard.collector;
+
+import com.capitalone.dashboard.model.Build;
+import com.capitalone.dashboard.model.TeamcityProject;
+import com.capitalone.dashboard.repository.TeamcityJobRepository;
+import org.bson.types.ObjectId;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.InOrder;
+import org.mockito.Mock;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.runners.MockitoJUnitRunner;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.anyListOf;
+import static org.junit.Assert.fail;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.inOrder;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+@RunWith(MockitoJUnitRunner.class)
+public class TeamcityBuildWriterTest {
+
+    @Mock private TeamcityBuildStore buildStore;
+    @Mock private TeamcityJobRepository teamcityJobRepository;
+
+    private final List<List<Build>> batches = new ArrayList<>();
+    private final List<List<TeamcityProject>> savedJobs = new ArrayList<>();
+    private TeamcityProject job;
+
+    @Before
+    @SuppressWarnings("unchecked")
+    public void init() {
+        doAnswer(this::written).when(buildStore).insert(anyListOf(Build.class));
+        when(teamcityJobRepository.save(anyListOf(TeamcityProject.class))).thenAnswer(invocation -> {
+            List<TeamcityProject> jobs = new ArrayList<>();
+            ((Iterable<TeamcityProject>) invocation.getArguments()[0]).forEach(jobs::add);
+            savedJobs.add(jobs);
+            return jobs;
+        });
+        job = new TeamcityProject();
+        job.setId(new ObjectId());
+        job.setJobName("Hygieia");
+        job.setJobUrl("http://teamcity:8111/app/rest/projects/id:Hygieia");
+    }
+
+    @Test
+    public void fullBatchIsWritten() {
+        TeamcityBuildWriter writer = new TeamcityBuildWriter(buildStore, teamcityJobRepository, 2, Long.MAX_VALUE);
+        Build first = build(1);
+        Build second = build(2);
+        writer.add(job, first);
+        assertEquals(0, batches.size());
+        writer.add(job, second);
+
+        assertEquals(Collections.singletonList(Arrays.asList(first, second)), batches);
+        assertEquals(job.getId(), first.getCollectorItemId());
+        assertEquals(Collections.singletonList(Collections.singletonList(job)), savedJobs);
+        assertEquals(2, writer.getCount());
+    }
+
+    @Test
+    public void dueBatchIsWritten() throws Exception {
+        TeamcityBuildWriter writer = new TeamcityBuildWriter(buildStore, teamcityJobRepository, 100, 20);
+        Thread.sleep(30);
+        writer.add(job, build(1));
+
+        assertEquals(1, batches.size());
+    }
+
+    @Test
+    public void jobIsSavedAfterItsBuilds() {
+        TeamcityBuildWriter writer = new TeamcityBuildWriter(buildStore, teamcityJobRepository, 100, Long.MAX_VALUE);
+        writer.add(job, build(1));
+        writer.advance(job, 1000);
+        writer.flush();
+
+        InOrder order = inOrder(buildStore, teamcityJobRepository);
+        order.verify(buildStore).insert(anyListOf(Build.class));
+        order.verify(teamcityJobRepository).save(anyListOf(TeamcityProject.class));
+        assertEquals(1000, job.getLastFinishTime());
+        assertTrue(job.getLastUpdated() > 0);
+    }
+
+    @Test
+    public void cursorOnlyMovesForward() {
+        TeamcityBuildWriter writer = new TeamcityBuildWriter(buildStore, teamcityJobRepository, 100, Long.MAX_VALUE);
+        job.setLastFinishTime(1000);
+        writer.advance(job, 500);
+        writer.flush();
+
+        assertEquals(1000, job.getLastFinishTime());
+        verify(teamcityJobRepository, never()).save(anyListOf(TeamcityProject.class));
+    }
+
+    @Test
+    public void updatedJobIsSavedWithoutBuilds() {
+        TeamcityBuildWriter writer = new TeamcityBuildWriter(buildStore, teamcityJobRepository, 100, Long.MAX_VALUE);
+        writer.update(job);
+        writer.update(job);
+        writer.flush();
+
+        verify(buildStore, never()).insert(anyListOf(Build.class));
+        assertEquals(Collections.singletonList(Collections.singletonList(job)), savedJobs);
+        assertTrue(job.getLastUpdated() > 0);
+    }
+
+    @Test
+    public void failedBatchIsDroppedAndFailsItsJobs() {
+        TeamcityBuildWriter writer = new TeamcityBuildWriter(buildStore, teamcityJobRepository, 100, Long.MAX_VALUE);
+        TeamcityProject other = new TeamcityProject();
+        other.setId(new ObjectId());
+        other.setJobName("Other");
+        other.setJobUrl("http://teamcity:8111/app/rest/projects/id:Other");
+        job.setLastFinishTime(500);
+        writer.add(job, build(1));
+        writer.advance(job, 1000);
+        writer.update(other);
+        doThrow(new IllegalStateException("write failed")).doAnswer(this::written)
+                .when(buildStore).insert(anyListOf(Build.class));
+        try {
+            writer.flush();
+            fail("the failure of the batch was not thrown");
+        } catch (IllegalStateException expected) {
+            // the lane's task fails
+        }
+        // the job without builds in the batch is still saved
+        assertEquals(Collections.singletonList(Collections.singletonList(other)), savedJobs);
+
+        writer.add(job, build(2));
+        writer.advance(job, 2000);
+        writer.update(other);
+        writer.flush();
+
+        // the failed batch is not written again, and the job is left for the next run
+        assertTrue(batches.isEmpty());
+        assertEquals(Arrays.asList(Collections.singletonList(other), Collections.singletonList(other)), savedJobs);
+        assertEquals(0, writer.getCount());
+    }
+
+    @Test
+    public void nothingIsWrittenWhenEmpty() {
+        TeamcityBuildWriter writer = new TeamcityBuildWriter(buildStore, teamcityJobRepository, 100, Long.MAX_VALUE);
+        writer.flush();
+
+        verify(buildStore, never()).insert(anyListOf(Build.class));
+        verify(teamcityJobRepository, never()).save(anyListOf(TeamcityProject.class));
+        assertEquals(0, writer.getCount());
+    }
+
+    // the writer reuses its lists, so copy them as they are written
+    @SuppressWarnings("unchecked")
+    private Object written(InvocationOnMock invocation) {
+        return batches.add(new ArrayList<>((List<Build>) invocation.getArguments()[0]));
+    }
+
+    private static Build build(int id) {
+        Build build = new Build();
+        build.setBuildUrl("http://teamcity:8111/app/rest/builds/id:" + id);
+        return build;
+    }
+}
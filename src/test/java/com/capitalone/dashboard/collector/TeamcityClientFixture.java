@@ -0,0 +1,130 @@
+package com.capitalone.dashboard.collector;
+
+import com.capitalone.dashboard.model.BaseModel;
+import com.capitalone.dashboard.model.Build;
+import org.apache.commons.io.IOUtils;
+import org.mockito.Matchers;
+import org.springframework.http.HttpEntity;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.mock.http.client.MockClientHttpRequest;
+import org.springframework.mock.http.client.MockClientHttpResponse;
+import org.springframework.web.client.RequestCallback;
+import org.springframework.web.client.ResponseExtractor;
+import org.springframework.web.client.RestOperations;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * A {@link DefaultTeamcityClient} on a mocked {@link RestOperations}. Every GET, whether read as a
+ * String or streamed to the parser, is answered with the same body, headers and status, and the
+ * headers of each request are kept.
+ */
+class TeamcityClientFixture {
+
+    static final String ALL_BUILDS_URL = "http://teamcity.example.com/app/rest/builds";
+    static final String PAGE_URL = ALL_BUILDS_URL + "?locator=project:Hygieia,count:3";
+
+    private final RestOperations rest = mock(RestOperations.class);
+    private final TeamcitySettings settings = new TeamcitySettings();
+    private String response;
+    private HttpStatus status = HttpStatus.OK;
+    // answered before status, one per request
+    private final Deque<HttpStatus> statuses = new ArrayDeque<>();
+    private final HttpHeaders responseHeaders = new HttpHeaders();
+    private final List<HttpHeaders> requestHeaders = new ArrayList<>();
+
+    @SuppressWarnings("unchecked")
+    TeamcityClientFixture() {
+        settings.setRequestRate(0);
+        settings.setMaxConcurrency(1);
+        when(rest.exchange(any(URI.class), eq(HttpMethod.GET), Matchers.<HttpEntity<?>>any(), eq(String.class)))
+                .thenAnswer(invocation -> {
+                    HttpEntity<?> request = (HttpEntity<?>) invocation.getArguments()[2];
+                    requestHeaders.add(request == null ? new HttpHeaders() : request.getHeaders());
+                    HttpStatus answer = answer();
+                    return new ResponseEntity<>(answer == HttpStatus.OK ? response : null, responseHeaders, answer);
+                });
+        when(rest.execute(any(URI.class), eq(HttpMethod.GET), any(RequestCallback.class), any(ResponseExtractor.class)))
+                .thenAnswer(invocation -> {
+                    MockClientHttpRequest request = new MockClientHttpRequest();
+                    ((RequestCallback) invocation.getArguments()[2]).doWithRequest(request);
+                    requestHeaders.add(request.getHeaders());
+                    HttpStatus answer = answer();
+                    MockClientHttpResponse clientResponse = new MockClientHttpResponse(
+                            answer == HttpStatus.OK ? response.getBytes(StandardCharsets.UTF_8) : new byte[0], answer);
+                    clientResponse.getHeaders().putAll(responseHeaders);
+                    return ((ResponseExtractor<?>) invocation.getArguments()[3]).extractData(clientResponse);
+                });
+    }
+
+    /**
+     * @return a client on the mocked rest operations, with a response cache sized by the settings as they are now
+     */
+    DefaultTeamcityClient newClient() {
+        return new DefaultTeamcityClient(() -> rest, () -> null, settings, new TeamcityResponseCache(settings),
+                new TeamcityRequestGovernor(settings), new TeamcityCredentials(settings));
+    }
+
+    TeamcitySettings getSettings() {
+        return settings;
+    }
+
+    void setResponse(String response) {
+        this.response = response;
+    }
+
+    /**
+     * Answers the next requests with a status, the body is only sent with 200.
+     */
+    void setStatus(HttpStatus status) {
+        this.status = status;
+    }
+
+    /**
+     * Answers the next request with a status, before going back to the one set.
+     */
+    void addStatus(HttpStatus status) {
+        statuses.add(status);
+    }
+
+    HttpHeaders getResponseHeaders() {
+        return responseHeaders;
+    }
+
+    List<HttpHeaders> getRequestHeaders() {
+        return requestHeaders;
+    }
+
+    private HttpStatus answer() {
+        return statuses.isEmpty() ? status : statuses.poll();
+    }
+
+    static List<Build> builds(TeamcityBuildPage page) {
+        List<Build> builds = new ArrayList<>();
+        for (BaseModel build : page.getBuilds()) {
+            builds.add((Build) build);
+        }
+        return builds;
+    }
+
+    static String getJson(String fileName) throws IOException {
+        try (InputStream inputStream = TeamcityClientFixture.class.getResourceAsStream(fileName)) {
+            return IOUtils.toString(inputStream, StandardCharsets.UTF_8);
+        }
+    }
+}
@@ -0,0 +1,96 @@
+package com.capitalone.dashboard.collector;
+
+import com.capitalone.dashboard.model.CollectorItem;
+import com.capitalone.dashboard.model.CollectorType;
+import com.capitalone.dashboard.model.Component;
+import org.bson.types.ObjectId;
+import org.junit.Before;
+import org.junit.ClassRule;
+import org.junit.Test;
+import org.springframework.util.CollectionUtils;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * The aggregation finds the same collector items as the scan of every component it replaced.
+ */
+public class TeamcityDashboardItemsTest {
+
+    @ClassRule
+    public static final EmbeddedMongo MONGO = new EmbeddedMongo();
+
+    private static final ObjectId COLLECTOR_ID = new ObjectId();
+    private static final ObjectId OTHER_COLLECTOR_ID = new ObjectId();
+
+    private TeamcityDashboardItems dashboardItems;
+
+    @Before
+    public void init() {
+        MONGO.getMongoTemplate().dropCollection(Component.class);
+        dashboardItems = new TeamcityDashboardItems(MONGO.getMongoTemplate());
+    }
+
+    @Test
+    public void noComponents() {
+        assertEquals(0, dashboardItems.findEnabledItemIds(COLLECTOR_ID).size());
+    }
+
+    @Test
+    public void sameItemsAsTheComponentScan() {
+        Random random = new Random(42);
+        List<ObjectId> itemIds = new ArrayList<>();
+        for (int i = 0; i < 300; i++) {
+            itemIds.add(new ObjectId());
+        }
+        for (int i = 0; i < 1000; i++) {
+            Component component = new Component("component " + i);
+            // some components have no items, or an empty list of build items
+            if (random.nextInt(10) > 0) {
+                component.getCollectorItems().put(CollectorType.Build, new ArrayList<>());
+            }
+            for (int j = random.nextInt(4); j > 0; j--) {
+                // items are shared between components, and other collectors have build items too
+                ObjectId collectorId = random.nextBoolean() ? COLLECTOR_ID : OTHER_COLLECTOR_ID;
+                CollectorType type = random.nextInt(5) == 0 ? CollectorType.SCM : CollectorType.Build;
+                component.addCollectorItem(type, item(itemIds.get(random.nextInt(itemIds.size())), collectorId));
+            }
+            MONGO.getMongoTemplate().save(component);
+        }
+
+        Set<ObjectId> expected = scanComponents(COLLECTOR_ID);
+        assertEquals(expected, dashboardItems.findEnabledItemIds(COLLECTOR_ID));
+        assertEquals(scanComponents(OTHER_COLLECTOR_ID), dashboardItems.findEnabledItemIds(OTHER_COLLECTOR_ID));
+    }
+
+    // the lookup clean() used before the aggregation
+    private static Set<ObjectId> scanComponents(ObjectId collectorId) {
+        Set<ObjectId> uniqueIDs = new HashSet<>();
+        for (Component comp : MONGO.getMongoTemplate().findAll(Component.class)) {
+            if (CollectionUtils.isEmpty(comp.getCollectorItems())) continue;
+
+            List<CollectorItem> itemList = comp.getCollectorItems().get(CollectorType.Build);
+
+            if (CollectionUtils.isEmpty(itemList)) continue;
+
+            for (CollectorItem ci : itemList) {
+                if (collectorId.equals(ci.getCollectorId())) {
+                    uniqueIDs.add(ci.getId());
+                }
+            }
+        }
+        return uniqueIDs;
+    }
+
+    private static CollectorItem item(ObjectId id, ObjectId collectorId) {
+        CollectorItem item = new CollectorItem();
+        item.setId(id);
+        item.setCollectorId(collectorId);
+        return item;
+    }
+}
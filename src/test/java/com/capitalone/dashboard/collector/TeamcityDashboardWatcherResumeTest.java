@@ -0,0 +1,95 @@
+package com.capitalone.dashboard.collector;
+
+import com.capitalone.dashboard.model.Component;
+import com.mongodb.BasicDBObject;
+import com.mongodb.CommandResult;
+import com.mongodb.DB;
+import com.mongodb.DBObject;
+import com.mongodb.MongoCommandException;
+import com.mongodb.ServerAddress;
+import org.bson.BsonDocument;
+import org.bson.BsonInt32;
+import org.bson.BsonString;
+import org.junit.Test;
+import org.springframework.data.mongodb.core.MongoTemplate;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * The watcher opens the stream again from the current changes once the last change it reported is
+ * no longer in the oplog, and reports the changes it missed.
+ */
+public class TeamcityDashboardWatcherResumeTest {
+
+    private final List<Object> resumedAfter = new CopyOnWriteArrayList<>();
+    private final CountDownLatch reopened = new CountDownLatch(1);
+
+    @Test
+    public void lostResumePointIsDroppedAndTheChangesReported() throws Exception {
+        MongoTemplate mongoTemplate = mock(MongoTemplate.class);
+        DB db = mock(DB.class);
+        when(mongoTemplate.getDb()).thenReturn(db);
+        when(mongoTemplate.getCollectionName(Component.class)).thenReturn("components");
+        when(db.command(any(DBObject.class))).thenAnswer(invocation -> answer((DBObject) invocation.getArguments()[0]));
+
+        Semaphore changes = new Semaphore(0);
+        TeamcityDashboardWatcher watcher = new TeamcityDashboardWatcher(mongoTemplate);
+        watcher.start(changes::release);
+        try {
+            assertTrue("stream was not opened again", reopened.await(10, TimeUnit.SECONDS));
+        } finally {
+            watcher.stop();
+        }
+
+        // the change, then the changes missed while the stream could not be resumed
+        assertEquals(2, changes.availablePermits());
+        assertEquals(Arrays.asList("null", "token", "null"), resumedAfter.subList(0, 3));
+    }
+
+    private CommandResult answer(DBObject command) {
+        if (command.containsField("getMore")) {
+            LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(50));
+            return result(new BasicDBObject("id", 1L).append("nextBatch", Collections.emptyList()));
+        }
+        if (!command.containsField("aggregate")) {
+            return result(new BasicDBObject());
+        }
+        DBObject changeStream = (DBObject) ((DBObject) ((List<?>) command.get("pipeline")).get(0)).get("$changeStream");
+        resumedAfter.add(String.valueOf(changeStream.get("resumeAfter")));
+        switch (resumedAfter.size()) {
+            case 1:
+                // one change, and the cursor is closed so the stream is resumed after it
+                return result(new BasicDBObject("id", 0L).append("firstBatch",
+                        Collections.singletonList(new BasicDBObject("_id", "token"))));
+            case 2:
+                CommandResult lost = result(null);
+                doThrow(new MongoCommandException(new BsonDocument("ok", new BsonInt32(0))
+                        .append("code", new BsonInt32(286)).append("errmsg", new BsonString("history lost")),
+                        new ServerAddress())).when(lost).throwOnError();
+                return lost;
+            default:
+                reopened.countDown();
+                return result(new BasicDBObject("id", 1L).append("firstBatch", Collections.emptyList()));
+        }
+    }
+
+    private static CommandResult result(DBObject cursor) {
+        CommandResult result = mock(CommandResult.class);
+        when(result.get("cursor")).thenReturn(cursor);
+        return result;
+    }
+}
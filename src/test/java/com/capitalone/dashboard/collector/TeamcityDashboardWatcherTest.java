@@ -0,0 +1,94 @@
+package com.capitalone.dashboard.collector;
+
+import com.capitalone.dashboard.model.Component;
+import com.mongodb.BasicDBObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.ClassRule;
+import org.junit.Test;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * The watcher reports component changes from the change stream of a single node replica set.
+ */
+public class TeamcityDashboardWatcherTest {
+
+    @ClassRule
+    public static final EmbeddedMongo MONGO = new EmbeddedMongo();
+
+    private MongoTemplate mongoTemplate;
+    private TeamcityDashboardWatcher watcher;
+    private final Semaphore changes = new Semaphore(0);
+
+    @Before
+    public void init() throws Exception {
+        mongoTemplate = MONGO.getMongoTemplate();
+        mongoTemplate.dropCollection(Component.class);
+        mongoTemplate.createCollection(Component.class);
+        watcher = new TeamcityDashboardWatcher(mongoTemplate);
+        watcher.start(changes::release);
+        awaitWatching();
+    }
+
+    @After
+    public void stop() {
+        watcher.stop();
+    }
+
+    @Test
+    public void insertUpdateAndDeleteAreReported() throws Exception {
+        Component component = new Component("payments");
+        mongoTemplate.save(component);
+        assertChanged();
+
+        component.setOwner("team");
+        mongoTemplate.save(component);
+        assertChanged();
+
+        mongoTemplate.remove(component);
+        assertChanged();
+    }
+
+    @Test
+    public void otherCollectionsAreNotReported() throws Exception {
+        mongoTemplate.getCollection("dashboards").insert(new BasicDBObject("title", "payments"));
+        assertFalse(changes.tryAcquire(2, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void startingTwiceWatchesOnce() throws Exception {
+        watcher.start(changes::release);
+        mongoTemplate.save(new Component("payments"));
+        assertChanged();
+        assertFalse(changes.tryAcquire(2, TimeUnit.SECONDS));
+    }
+
+    private void assertChanged() throws InterruptedException {
+        assertTrue("change was not reported", changes.tryAcquire(10, TimeUnit.SECONDS));
+    }
+
+    // the stream is opened on the watcher thread, changes are only reported once it is open
+    private void awaitWatching() throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 30000;
+        while (System.currentTimeMillis() < deadline) {
+            mongoTemplate.save(new Component("probe"));
+            if (changes.tryAcquire(500, TimeUnit.MILLISECONDS)) {
+                mongoTemplate.remove(new Query(Criteria.where("name").is("probe")), Component.class);
+                // the removal, and any probe saved while the stream was opening, are reported too
+                while (changes.tryAcquire(1, TimeUnit.SECONDS)) {
+                    changes.drainPermits();
+                }
+                return;
+            }
+        }
+        throw new IllegalStateException("change stream was not opened");
+    }
+}
@@ -0,0 +1,52 @@
+package com.capitalone.dashboard.collector;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+
+public class TeamcityFinishCursorTest {
+
+    @Test
+    public void movesToTheNewestIngestedBuild() {
+        TeamcityFinishCursor cursor = new TeamcityFinishCursor(100, Arrays.asList(200L, 300L));
+        cursor.next(true);
+        cursor.next(true);
+        assertEquals(300, cursor.position());
+    }
+
+    @Test
+    public void longBuildWithLowerIdHoldsTheCursorUntilItIsProcessed() {
+        // build 1 started first but finished last, build 2 finished in between
+        TeamcityFinishCursor cursor = new TeamcityFinishCursor(100, Arrays.asList(500L, 200L, 300L));
+        cursor.next(true);
+        assertEquals(100, cursor.position());
+        cursor.next(true);
+        assertEquals(200, cursor.position());
+        cursor.next(true);
+        assertEquals(500, cursor.position());
+    }
+
+    @Test
+    public void failedBuildHoldsTheCursorBeforeIt() {
+        TeamcityFinishCursor cursor = new TeamcityFinishCursor(100, Arrays.asList(200L, 300L, 400L));
+        cursor.next(true);
+        cursor.next(false);
+        cursor.next(true);
+        assertEquals(200, cursor.position());
+    }
+
+    @Test
+    public void neverMovesBack() {
+        TeamcityFinishCursor cursor = new TeamcityFinishCursor(1000, Arrays.asList(200L, 0L));
+        cursor.next(true);
+        cursor.next(true);
+        assertEquals(1000, cursor.position());
+    }
+
+    @Test
+    public void locatorListsBuildsFinishedAfterTheCursorLessTheLookback() {
+        assertEquals("20170102T030405%2B0000", DefaultTeamcityClient.locatorDate(1483326245000L));
+    }
+}
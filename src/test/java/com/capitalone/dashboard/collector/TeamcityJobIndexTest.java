@@ -0,0 +1,85 @@
+package com.capitalone.dashboard.collector;
+
+import com.capitalone.dashboard.model.TeamcityProject;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Reconciling jobs through the index finds the same jobs as the list scans it replaced.
+ */
+public class TeamcityJobIndexTest {
+
+    private static final int JOBS = 100_000;
+    // the list scans are quadratic, they are checked on every n-th discovered job
+    private static final int SCAN_EVERY = 500;
+
+    @Test
+    public void reconcilesLikeTheListScan() {
+        Random random = new Random(7);
+        List<TeamcityProject> existingJobs = new ArrayList<>(JOBS);
+        for (int i = 0; i < JOBS; i++) {
+            // jobs of other servers share names, and some jobs are stored twice
+            existingJobs.add(job(random.nextInt(JOBS), random.nextInt(5)));
+        }
+        List<TeamcityProject> discovered = new ArrayList<>(JOBS);
+        for (int i = 0; i < JOBS; i++) {
+            // about half of them are stored already
+            discovered.add(job(random.nextInt(2 * JOBS), random.nextInt(5)));
+        }
+        Collections.shuffle(discovered, random);
+
+        TeamcityJobIndex existingIndex = new TeamcityJobIndex(existingJobs);
+        TeamcityJobIndex discoveredIndex = new TeamcityJobIndex(discovered);
+        int found = 0;
+        for (int i = 0; i < JOBS; i++) {
+            TeamcityProject job = discovered.get(i);
+            TeamcityProject existing = existingIndex.get(job);
+            if (existing != null) {
+                found++;
+                assertEquals(job, existing);
+            }
+            if (i % SCAN_EVERY == 0) {
+                // addNewJobs
+                int index = existingJobs.indexOf(job);
+                if (index < 0) {
+                    assertNull(existing);
+                } else {
+                    assertSame(existingJobs.get(index), existing);
+                }
+                // deleteUnwantedJobs
+                TeamcityProject stored = existingJobs.get(i);
+                assertEquals(discovered.contains(stored), discoveredIndex.contains(stored));
+            }
+        }
+        assertTrue("found " + found, found > JOBS / 4 && found < JOBS * 3 / 4);
+    }
+
+    @Test
+    public void firstOfEqualJobsWins() {
+        TeamcityProject first = job(1, 0);
+        TeamcityProject second = job(1, 1);
+        TeamcityJobIndex index = new TeamcityJobIndex(Arrays.asList(first, second));
+
+        assertSame(first, index.get(job(1, 2)));
+        assertFalse(index.contains(job(2, 0)));
+    }
+
+    private static TeamcityProject job(int number, int server) {
+        TeamcityProject job = new TeamcityProject();
+        job.setInstanceUrl("http://teamcity" + server + ":8111");
+        job.setJobName("Project_" + number);
+        job.setJobUrl("http://teamcity:8111/app/rest/projects/id:Project_" + number);
+        return job;
+    }
+}
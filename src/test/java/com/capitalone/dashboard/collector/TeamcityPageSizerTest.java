@@ -0,0 +1,78 @@
+package com.capitalone.dashboard.collector;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class TeamcityPageSizerTest {
+
+    private static final String INSTANCE = "http://teamcity:8111";
+
+    private TeamcitySettings settings;
+    private TeamcityPageSizer pageSizer;
+
+    @Before
+    public void init() {
+        settings = new TeamcitySettings();
+        settings.setPageSize(100);
+        settings.setMinPageSize(25);
+        settings.setMaxPageSize(1000);
+        settings.setTargetPageLatency(2000);
+        settings.setMaxPageBytes(1000000);
+        pageSizer = new TeamcityPageSizer(settings);
+    }
+
+    @Test
+    public void configuredSizeIsClamped() {
+        settings.setPageSize(5000);
+        assertEquals(1000, pageSizer.size(INSTANCE));
+
+        settings.setPageSize(1);
+        assertEquals(25, pageSizer.size(INSTANCE));
+    }
+
+    @Test
+    public void fastPagesAtMostDouble() {
+        pageSizer.record(INSTANCE, 100, 10, 1000);
+        assertEquals(200, pageSizer.size(INSTANCE));
+
+        pageSizer.record(INSTANCE, 200, 10, 2000);
+        pageSizer.record(INSTANCE, 400, 10, 4000);
+        pageSizer.record(INSTANCE, 800, 10, 8000);
+        assertEquals(1000, pageSizer.size(INSTANCE));
+    }
+
+    @Test
+    public void slowPagesShrinkToTheTargetLatency() {
+        // 100 builds in 4 seconds, 50 builds take the 2 second target
+        pageSizer.record(INSTANCE, 100, 4000, 1000);
+        assertEquals(50, pageSizer.size(INSTANCE));
+
+        pageSizer.record(INSTANCE, 50, 60000, 500);
+        assertEquals(25, pageSizer.size(INSTANCE));
+    }
+
+    @Test
+    public void largePagesShrinkToTheByteLimit() {
+        // 10k per build, 100 builds fill the 1MB limit
+        pageSizer.record(INSTANCE, 100, 10, 1000000);
+        assertEquals(100, pageSizer.size(INSTANCE));
+
+        pageSizer.record(INSTANCE, 100, 10, 4000000);
+        assertEquals(25, pageSizer.size(INSTANCE));
+    }
+
+    @Test
+    public void emptyPagesAreIgnored() {
+        pageSizer.record(INSTANCE, 0, 60000, 100);
+        assertEquals(100, pageSizer.size(INSTANCE));
+    }
+
+    @Test
+    public void instancesAreSizedApart() {
+        pageSizer.record(INSTANCE, 100, 4000, 1000);
+        assertEquals(50, pageSizer.size(INSTANCE));
+        assertEquals(100, pageSizer.size("http://other:8111"));
+    }
+}
@@ -0,0 +1,245 @@
+package com.capitalone.dashboard.collector;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import org.springframework.web.client.RestClientException;
+
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class TeamcityRequestGovernorTest {
+
+    private static final URI BUILD = URI.create("http://teamcity:8111/app/rest/builds/id:1");
+
+    private TeamcitySettings settings;
+    private TeamcityRequestGovernor governor;
+
+    @Before
+    public void init() {
+        settings = new TeamcitySettings();
+        settings.setRequestRate(0);
+        settings.setMaxConcurrency(2);
+        governor = new TeamcityRequestGovernor(settings);
+        governor.refresh();
+    }
+
+    @Test
+    public void requestsInFlightNeverExceedTheLimitWhileWaitingForTokens() throws Exception {
+        settings.setRequestRate(500);
+        governor.refresh();
+        AtomicInteger inFlight = new AtomicInteger();
+        AtomicInteger maxInFlight = new AtomicInteger();
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<?>> requests = new ArrayList<>();
+            for (int i = 0; i < 40; i++) {
+                requests.add(executor.submit(() -> {
+                    try (TeamcityRequestGovernor.Permit permit = governor.acquire(BUILD)) {
+                        maxInFlight.accumulateAndGet(inFlight.incrementAndGet(), Math::max);
+                        Thread.sleep(2);
+                        inFlight.decrementAndGet();
+                        permit.status(200);
+                    }
+                    return null;
+                }));
+            }
+            for (Future<?> request : requests) {
+                request.get(10, TimeUnit.SECONDS);
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        assertTrue("max in flight " + maxInFlight.get(), maxInFlight.get() <= 2);
+    }
+
+    @Test
+    public void serverLimitIsMatchedByUrl() throws Exception {
+        settings.getServerLimits().add(serverLimit("http://teamcity:8111/", 1));
+        governor.refresh();
+
+        TeamcityRequestGovernor.Permit first = governor.acquire(BUILD);
+        CompletableFuture<TeamcityRequestGovernor.Permit> second = CompletableFuture.supplyAsync(() -> governor.acquire(BUILD));
+        assertBlocked(second);
+        first.close();
+        second.get(5, TimeUnit.SECONDS).close();
+
+        // other servers keep the limit for all servers, two requests in flight
+        URI other = URI.create("http://other:8111/app/rest/builds/id:1");
+        TeamcityRequestGovernor.Permit a = governor.acquire(other);
+        TeamcityRequestGovernor.Permit b = governor.acquire(other);
+        a.close();
+        b.close();
+    }
+
+    @Test
+    public void changedServerLimitsApplyAfterRefresh() throws Exception {
+        settings.getServerLimits().add(serverLimit("http://teamcity:8111", 1));
+        governor.refresh();
+        governor.acquire(BUILD).close();
+
+        settings.getServerLimits().set(0, serverLimit("http://teamcity:8111", 2));
+        governor.refresh();
+        CompletableFuture<Void> both = CompletableFuture.runAsync(() -> {
+            try (TeamcityRequestGovernor.Permit a = governor.acquire(BUILD);
+                 TeamcityRequestGovernor.Permit b = governor.acquire(BUILD)) {
+                a.status(200);
+                b.status(200);
+            }
+        });
+        both.get(5, TimeUnit.SECONDS);
+    }
+
+    @Test
+    public void throttledResponsesHalveTheLimitOnce() throws Exception {
+        settings.setMaxConcurrency(4);
+        governor.refresh();
+        List<TeamcityRequestGovernor.Permit> permits = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            permits.add(governor.acquire(BUILD));
+        }
+        // requests sent before the back off do not halve the limit again
+        Thread.sleep(10);
+        close(permits.get(0), 429);
+        close(permits.get(1), 503);
+
+        CompletableFuture<TeamcityRequestGovernor.Permit> third = CompletableFuture.supplyAsync(() -> governor.acquire(BUILD));
+        assertBlocked(third);
+        close(permits.get(2), 200);
+        close(third.get(5, TimeUnit.SECONDS), 200);
+        close(permits.get(3), 200);
+    }
+
+    @Test
+    public void healthyResponsesGrowTheLimitBack() throws Exception {
+        settings.setMaxConcurrency(4);
+        governor.refresh();
+        close(governor.acquire(BUILD), 429);
+
+        // a slow first response, so the usual latency of the quick ones never looks overloaded
+        TeamcityRequestGovernor.Permit first = governor.acquire(BUILD);
+        Thread.sleep(50);
+        close(first, 200);
+        for (int i = 0; i < 10; i++) {
+            close(governor.acquire(BUILD), 200);
+        }
+        assertLimit(4);
+    }
+
+    @Test
+    public void slowResponsesHalveTheLimit() throws Exception {
+        settings.setMaxConcurrency(4);
+        governor.refresh();
+        TeamcityRequestGovernor.Permit usual = governor.acquire(BUILD);
+        Thread.sleep(20);
+        close(usual, 200);
+
+        TeamcityRequestGovernor.Permit slow = governor.acquire(BUILD);
+        Thread.sleep(100);
+        close(slow, 200);
+        assertLimit(2);
+    }
+
+    @Test
+    public void asyncRequestIsAdmittedWhenASlotIsReleased() throws Exception {
+        TeamcityRequestGovernor.Permit first = governor.acquire(BUILD);
+        TeamcityRequestGovernor.Permit second = governor.acquire(BUILD);
+        CompletableFuture<TeamcityRequestGovernor.Permit> third = governor.acquireAsync(BUILD);
+        CompletableFuture<TeamcityRequestGovernor.Permit> fourth = governor.acquireAsync(BUILD);
+        assertFalse(third.isDone());
+
+        // admitted in the order they asked, by the thread releasing the slot
+        close(first, 200);
+        assertTrue(third.isDone());
+        assertFalse(fourth.isDone());
+        close(second, 200);
+        close(third.get(), 200);
+        close(fourth.get(), 200);
+    }
+
+    @Test
+    public void asyncRequestIsAdmittedWhenTokensRefill() throws Exception {
+        settings.setRequestRate(20);
+        settings.setMaxConcurrency(100);
+        governor.refresh();
+        List<CompletableFuture<TeamcityRequestGovernor.Permit>> requests = new ArrayList<>();
+        for (int i = 0; i < 25; i++) {
+            requests.add(governor.acquireAsync(BUILD));
+        }
+        // the bucket holds a second of requests, the others are admitted as it refills
+        assertFalse(requests.get(24).isDone());
+        close(requests.get(24).get(5, TimeUnit.SECONDS), 200);
+        for (CompletableFuture<TeamcityRequestGovernor.Permit> request : requests.subList(0, 24)) {
+            close(request.get(), 200);
+        }
+    }
+
+    @Test
+    public void interruptedRequestGivesUpItsTurn() throws Exception {
+        settings.setMaxConcurrency(1);
+        governor.refresh();
+        TeamcityRequestGovernor.Permit first = governor.acquire(BUILD);
+        Thread waiting = new Thread(() -> {
+            try {
+                governor.acquire(BUILD).close();
+            } catch (RestClientException expected) {
+                // interrupted while waiting
+            }
+        });
+        waiting.start();
+        Thread.sleep(50);
+        waiting.interrupt();
+        waiting.join(5000);
+
+        CompletableFuture<TeamcityRequestGovernor.Permit> next = governor.acquireAsync(BUILD);
+        close(first, 200);
+        close(next.get(5, TimeUnit.SECONDS), 200);
+    }
+
+    // the limit of requests in flight is reached and one more waits, the last check of a test as its responses feed the limit too
+    private void assertLimit(int limit) throws Exception {
+        List<TeamcityRequestGovernor.Permit> permits = new ArrayList<>();
+        for (int i = 0; i < limit; i++) {
+            permits.add(CompletableFuture.supplyAsync(() -> governor.acquire(BUILD)).get(5, TimeUnit.SECONDS));
+        }
+        CompletableFuture<TeamcityRequestGovernor.Permit> next = CompletableFuture.supplyAsync(() -> governor.acquire(BUILD));
+        assertBlocked(next);
+        for (TeamcityRequestGovernor.Permit permit : permits) {
+            permit.close();
+        }
+        next.get(5, TimeUnit.SECONDS).close();
+    }
+
+    private static void close(TeamcityRequestGovernor.Permit permit, int status) {
+        permit.status(status);
+        permit.close();
+    }
+
+    private static TeamcitySettings.ServerLimit serverLimit(String url, int maxConcurrency) {
+        TeamcitySettings.ServerLimit serverLimit = new TeamcitySettings.ServerLimit();
+        serverLimit.setUrl(url);
+        serverLimit.setMaxConcurrency(maxConcurrency);
+        return serverLimit;
+    }
+
+    private static void assertBlocked(Future<?> request) throws Exception {
+        try {
+            request.get(200, TimeUnit.MILLISECONDS);
+            fail("request was not held back");
+        } catch (TimeoutException expected) {
+            // still waiting for a free slot
+        }
+    }
+}
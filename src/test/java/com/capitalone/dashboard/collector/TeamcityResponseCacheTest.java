@@ -0,0 +1,137 @@
+package com.capitalone.dashboard.collector;
+
+import com.capitalone.dashboard.model.BaseModel;
+import com.capitalone.dashboard.model.Build;
+import org.bson.types.ObjectId;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.http.HttpHeaders;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+
+public class TeamcityResponseCacheTest {
+
+    private static final String BUILDS = "http://teamcity:8111/app/rest/builds?locator=";
+
+    private TeamcitySettings settings;
+    private TeamcityResponseCache cache;
+
+    @Before
+    public void init() {
+        settings = new TeamcitySettings();
+        settings.setResponseCacheSize(2);
+        cache = new TeamcityResponseCache(settings);
+    }
+
+    @Test
+    public void validatorsOfTheLastResponseAreSent() {
+        assertNull(cache.lookup(firstPage("Hygieia")));
+
+        HttpHeaders response = new HttpHeaders();
+        response.setETag("\"v1\"");
+        response.set(HttpHeaders.LAST_MODIFIED, "Mon, 02 Jan 2017 03:10:20 GMT");
+        cache.put(firstPage("Hygieia"), response, names("a"), ArrayList::new);
+
+        HttpHeaders validators = cache.lookup(firstPage("Hygieia")).validators();
+        assertEquals("\"v1\"", validators.getIfNoneMatch().get(0));
+        assertEquals("Mon, 02 Jan 2017 03:10:20 GMT", validators.getFirst(HttpHeaders.IF_MODIFIED_SINCE));
+        assertEquals(names("a"), cache.hit(cache.lookup(firstPage("Hygieia"))));
+    }
+
+    @Test
+    public void responseWithoutValidatorsDropsTheEntry() {
+        cache.put(firstPage("Hygieia"), eTag("v1"), names("a"), ArrayList::new);
+        cache.put(firstPage("Hygieia"), new HttpHeaders(), names("b"), ArrayList::new);
+
+        assertNull(cache.lookup(firstPage("Hygieia")));
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void leastRecentlyUsedResponseIsDropped() {
+        cache.put(firstPage("a"), eTag("a"), names("a"), ArrayList::new);
+        cache.put(firstPage("b"), eTag("b"), names("b"), ArrayList::new);
+        cache.hit(cache.lookup(firstPage("a")));
+        cache.put(firstPage("c"), eTag("c"), names("c"), ArrayList::new);
+
+        assertEquals(2, cache.size());
+        assertEquals(names("a"), cache.hit(cache.lookup(firstPage("a"))));
+        assertNull(cache.lookup(firstPage("b")));
+        assertEquals(names("c"), cache.hit(cache.lookup(firstPage("c"))));
+    }
+
+    @Test
+    public void entryTakenForARequestKeepsItsResultOnceDropped() {
+        cache.put(firstPage("a"), eTag("a"), names("a"), ArrayList::new);
+        TeamcityResponseCache.Entry entry = cache.lookup(firstPage("a"));
+        cache.put(firstPage("b"), eTag("b"), names("b"), ArrayList::new);
+        cache.put(firstPage("c"), eTag("c"), names("c"), ArrayList::new);
+
+        // the request was sent with the validators of the entry, the 304 revalidates its result
+        assertNull(cache.lookup(firstPage("a")));
+        assertEquals("\"a\"", entry.validators().getIfNoneMatch().get(0));
+        assertEquals(names("a"), cache.hit(entry));
+    }
+
+    @Test
+    public void movingCursorReplacesTheEntryOfTheProject() {
+        String before = BUILDS + "project:Hygieia,finishDate:(date:20170102T031020%2B0000,condition:after),count:100";
+        String after = BUILDS + "project:Hygieia,finishDate:(date:20170103T081500%2B0000,condition:after),count:100";
+        assertEquals(TeamcityResponseCache.key(before), TeamcityResponseCache.key(after));
+
+        cache.put(before, eTag("v1"), names("a"), ArrayList::new);
+        // another cursor is another response, it is not revalidated against the old one
+        assertNull(cache.lookup(after));
+        cache.put(after, eTag("v2"), names("b"), ArrayList::new);
+
+        assertEquals(1, cache.size());
+        assertNull(cache.lookup(before));
+        assertEquals("\"v2\"", cache.lookup(after).validators().getIfNoneMatch().get(0));
+    }
+
+    @Test
+    public void cachedResultIsNotShared() {
+        Build build = new Build();
+        build.setBuildUrl("http://teamcity:8111/app/rest/builds/id:1");
+        build.setNumber("1");
+        TeamcityBuildPage page = new TeamcityBuildPage(Collections.<BaseModel>singleton(build), null, 10);
+        cache.put(firstPage("Hygieia"), eTag("v1"), page, TeamcityBuildPage::copy);
+
+        // the caller saves the builds it got, which sets their ids
+        build.setId(ObjectId.get());
+        Build first = only(cache.<TeamcityBuildPage>hit(cache.lookup(firstPage("Hygieia"))));
+        first.setId(ObjectId.get());
+        Build second = only(cache.<TeamcityBuildPage>hit(cache.lookup(firstPage("Hygieia"))));
+
+        assertNotSame(first, second);
+        assertNull(second.getId());
+        assertEquals("1", second.getNumber());
+        assertEquals(build.getBuildUrl(), second.getBuildUrl());
+    }
+
+    private static String firstPage(String projectId) {
+        return BUILDS + "project:" + projectId + ",count:100";
+    }
+
+    private static HttpHeaders eTag(String version) {
+        HttpHeaders headers = new HttpHeaders();
+        headers.setETag("\"" + version + "\"");
+        return headers;
+    }
+
+    private static List<String> names(String... names) {
+        return new ArrayList<>(Arrays.asList(names));
+    }
+
+    private static Build only(TeamcityBuildPage page) {
+        assertEquals(1, page.getBuilds().size());
+        return (Build) page.getBuilds().iterator().next();
+    }
+}
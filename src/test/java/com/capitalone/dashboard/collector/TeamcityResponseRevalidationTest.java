@@ -0,0 +1,110 @@
+package com.capitalone.dashboard.collector;
+
+import com.capitalone.dashboard.model.Build;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import static com.capitalone.dashboard.collector.TeamcityClientFixture.ALL_BUILDS_URL;
+import static com.capitalone.dashboard.collector.TeamcityClientFixture.PAGE_URL;
+import static com.capitalone.dashboard.collector.TeamcityClientFixture.builds;
+import static com.capitalone.dashboard.collector.TeamcityClientFixture.getJson;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+
+/**
+ * Build list pages are requested with the validators of their last response, and a 304 answers
+ * with the page cached from it, for both parsers.
+ */
+public class TeamcityResponseRevalidationTest {
+
+    private TeamcityClientFixture fixture;
+    private TeamcitySettings settings;
+    private DefaultTeamcityClient client;
+    private HttpHeaders responseHeaders;
+    private List<HttpHeaders> requestHeaders;
+
+    @Before
+    public void init() throws IOException {
+        fixture = new TeamcityClientFixture();
+        settings = fixture.getSettings();
+        settings.setResponseCacheSize(10);
+        client = fixture.newClient();
+        fixture.setResponse(getJson("buildList_firstPage.json"));
+        responseHeaders = fixture.getResponseHeaders();
+        requestHeaders = fixture.getRequestHeaders();
+    }
+
+    @Test
+    public void notModifiedPageIsServedFromTheCache() throws Exception {
+        assertRevalidated(false);
+    }
+
+    @Test
+    public void notModifiedStreamedPageIsServedFromTheCache() throws Exception {
+        assertRevalidated(true);
+    }
+
+    @Test
+    public void unconditionalPagesAreNotCached() throws Exception {
+        for (boolean streaming : new boolean[]{false, true}) {
+            settings.setStreamingParser(streaming);
+            responseHeaders.setETag("\"v1\"");
+            client.getBuildPage(PAGE_URL, ALL_BUILDS_URL, false);
+            client.getBuildPage(PAGE_URL, ALL_BUILDS_URL, false);
+
+            assertEquals(2, requestHeaders.size());
+            assertNull(requestHeaders.get(1).getFirst(HttpHeaders.IF_NONE_MATCH));
+            requestHeaders.clear();
+        }
+    }
+
+    @Test
+    public void notModifiedWithoutACachedPageIsFetchedAgain() throws Exception {
+        for (boolean streaming : new boolean[]{false, true}) {
+            settings.setStreamingParser(streaming);
+            fixture.addStatus(HttpStatus.NOT_MODIFIED);
+            String url = PAGE_URL + ",streaming:" + streaming;
+
+            List<Build> builds = builds(client.getBuildPage(url, ALL_BUILDS_URL, true));
+            assertEquals(2, requestHeaders.size());
+            assertNull(requestHeaders.get(1).getFirst(HttpHeaders.IF_NONE_MATCH));
+            assertEquals(3, builds.size());
+            requestHeaders.clear();
+        }
+    }
+
+    private void assertRevalidated(boolean streaming) throws Exception {
+        settings.setStreamingParser(streaming);
+        responseHeaders.setETag("\"v1\"");
+        List<Build> fetched = builds(client.getBuildPage(PAGE_URL, ALL_BUILDS_URL, true));
+        assertNull(requestHeaders.get(0).getFirst(HttpHeaders.IF_NONE_MATCH));
+
+        fixture.setStatus(HttpStatus.NOT_MODIFIED);
+        List<Build> revalidated = builds(client.getBuildPage(PAGE_URL, ALL_BUILDS_URL, true));
+        assertEquals("\"v1\"", requestHeaders.get(1).getFirst(HttpHeaders.IF_NONE_MATCH));
+        List<String> buildUrls = buildUrls(fetched);
+        assertEquals(3, buildUrls.size());
+        assertEquals(buildUrls, buildUrls(revalidated));
+        assertNotSame(fetched.get(0), revalidated.get(0));
+
+        // the builds are changed by the collector once returned, the cached page is not
+        revalidated.get(0).setBuildUrl("changed");
+        fetched.get(1).setBuildUrl("changed");
+        assertEquals(buildUrls, buildUrls(builds(client.getBuildPage(PAGE_URL, ALL_BUILDS_URL, true))));
+    }
+
+    private static List<String> buildUrls(List<Build> builds) {
+        List<String> buildUrls = new ArrayList<>();
+        for (Build build : builds) {
+            buildUrls.add(build.getBuildUrl());
+        }
+        return buildUrls;
+    }
+}